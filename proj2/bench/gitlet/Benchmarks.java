@@ -0,0 +1,133 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** What the benchmarks share: gitlet commands are timed as a user runs
+ *  them, each in a JVM of its own with the repository as its working
+ *  directory, startup included. */
+class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /** The output and the wall time of one command. */
+    static class Run {
+        final String output;
+        final long nanos;
+
+        Run(String output, long nanos) {
+            this.output = output;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Run one gitlet command in a new JVM
+     * @param dir the working directory
+     * @param options JVM options, such as system properties
+     * @param args the command and its operands
+     * @return what it printed and how long it took
+     */
+    static Run gitlet(File dir, List<String> options, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + "/bin/java");
+        command.addAll(options);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.addAll(Arrays.asList(args));
+        try {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream output = process.getInputStream()) {
+                output.transferTo(out);
+            }
+            process.waitFor();
+            return new Run(out.toString(StandardCharsets.UTF_8), System.nanoTime() - start);
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        } catch (InterruptedException excp) {
+            throw new IllegalStateException(excp);
+        }
+    }
+
+    static Run gitlet(File dir, String... args) {
+        return gitlet(dir, List.of(), args);
+    }
+
+    /** Run a command that must succeed quietly, as the setup of a benchmark does. */
+    static void setUp(File dir, String... args) {
+        String output = gitlet(dir, args).output;
+        if (!output.isEmpty()) {
+            throw new IllegalStateException(String.join(" ", args) + ": " + output);
+        }
+    }
+
+    /** Stage a working file for addition as add does, without a JVM per file. */
+    static void stage(File dir, String fileName) {
+        File stagingArea = new File(dir, ".gitlet/staging_area");
+        new StageAreaService(new File(stagingArea, "addition"), new File(stagingArea, "removal"))
+                .addInAddition(new File(dir, fileName), fileName);
+    }
+
+    static void write(File dir, String fileName, String content) {
+        File file = new File(dir, fileName);
+        file.getParentFile().mkdirs();
+        try {
+            Files.writeString(file.toPath(), content);
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+    }
+
+    static void append(File dir, String fileName, String content) {
+        try {
+            Files.writeString(new File(dir, fileName).toPath(), content, StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+    }
+
+    /** @return the median of the times, in milliseconds */
+    static long medianMillis(List<Long> nanos) {
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        return sorted[sorted.length / 2] / 1_000_000;
+    }
+
+    /** @return the times in milliseconds, in the order they were taken */
+    static String millis(List<Long> nanos) {
+        StringBuilder out = new StringBuilder();
+        nanos.forEach(time -> out.append(out.length() == 0 ? "" : " ").append(time / 1_000_000));
+        return out.toString();
+    }
+
+    static File createTempDirectory(String prefix) {
+        try {
+            return Files.createTempDirectory(prefix).toFile();
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+    }
+
+    static void delete(File dir) {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+    }
+}
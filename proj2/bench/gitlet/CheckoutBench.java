@@ -0,0 +1,101 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Benchmarks.*;
+
+/** Sequential against parallel checkout: branches master and other differ
+ *  in every one of FILES files, and each round checks out the other branch
+ *  once per thread count, the counts interleaved so that they share the
+ *  state of the disk.  The pool size is set with -Dgitlet.checkout.threads,
+ *  1 being sequential.  Every checkout is checked to have written the files
+ *  of its branch.
+ *  <pre>
+ *      javac -d classes gitlet/*.java bench/gitlet/Benchmarks.java bench/gitlet/CheckoutBench.java
+ *      java -cp classes gitlet.CheckoutBench [files [rounds [threads...]]]
+ *  </pre>
+ *  from proj2; 10,000 files, 6 rounds and 1, 4 and 16 threads by default.
+ */
+public class CheckoutBench {
+    public static void main(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        List<String> threads = new ArrayList<>();
+        for (int i = 2; i < args.length; i += 1) {
+            threads.add(args[i]);
+        }
+        if (threads.isEmpty()) {
+            threads.addAll(List.of("1", "4", "16"));
+        }
+
+        File dir = createTempDirectory("gitlet-checkout-bench");
+        try {
+            setUp(dir, files);
+            Map<String, List<Long>> times = new LinkedHashMap<>();
+            boolean onOther = false;
+            for (int round = 0; round < rounds; round += 1) {
+                for (String count : threads) {
+                    onOther = !onOther;
+                    String branch = onOther ? "other" : "master";
+                    Run run = gitlet(dir, List.of("-Dgitlet.checkout.threads=" + count), "checkout", branch);
+                    if (!run.output.isEmpty()) {
+                        throw new IllegalStateException("checkout " + branch + ": " + run.output);
+                    }
+                    verify(dir, files, onOther);
+                    times.computeIfAbsent(count, key -> new ArrayList<>()).add(run.nanos);
+                }
+            }
+            System.out.printf("checkout between branches differing in all %d files, median of %d:%n", files, rounds);
+            times.forEach((count, nanos) -> System.out.printf("  threads=%-3s median %6d ms  (%s)%n",
+                    count, medianMillis(nanos), millis(nanos)));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static String fileName(int i) {
+        return "d" + i % 100 + "/f" + i;
+    }
+
+    private static String content(int i, boolean onOther) {
+        return "file " + i + "\n" + (onOther ? "changed on other\n" : "");
+    }
+
+    /** Commit every file on master, change every one on branch other, and check out master again. */
+    private static void setUp(File dir, int files) {
+        Benchmarks.setUp(dir, "init");
+        for (int i = 0; i < files; i += 1) {
+            write(dir, fileName(i), content(i, false));
+            stage(dir, fileName(i));
+        }
+        Benchmarks.setUp(dir, "commit", "files");
+        Benchmarks.setUp(dir, "branch", "other");
+        Benchmarks.setUp(dir, "checkout", "other");
+        for (int i = 0; i < files; i += 1) {
+            write(dir, fileName(i), content(i, true));
+            stage(dir, fileName(i));
+        }
+        Benchmarks.setUp(dir, "commit", "changes");
+        Benchmarks.setUp(dir, "checkout", "master");
+    }
+
+    private static void verify(File dir, int files, boolean onOther) {
+        for (int i = 0; i < files; i += 1) {
+            try {
+                String content = Files.readString(new File(dir, fileName(i)).toPath());
+                if (!content.equals(content(i, onOther))) {
+                    throw new AssertionError(fileName(i) + " was not checked out");
+                }
+            } catch (IOException excp) {
+                throw new UncheckedIOException(excp);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Storage and rebuild cost of blobs stored as deltas, against the depth of
+ *  their delta chain.  Successive versions of one text file are saved each
+ *  against the one before, as commit does, each version inserting one line
+ *  and changing another.  For each version it prints the depth of its
+ *  chain, the bytes it added to the store, and the median time to rebuild
+ *  it with an empty blob cache.
+ *  <pre>
+ *      javac -d classes gitlet/*.java bench/gitlet/DeltaBench.java
+ *      java -cp classes gitlet.DeltaBench [file [versions]]
+ *  </pre>
+ *  from proj2.  FILE is the first version, 150 KB of generated source
+ *  lines by default; there are 34 versions by default.
+ */
+public class DeltaBench {
+    private static final int READS = 51;
+
+    public static void main(String[] args) throws IOException {
+        List<String> lines = args.length > 0
+                ? new ArrayList<>(Files.readAllLines(Path.of(args[0]), StandardCharsets.UTF_8))
+                : generateSource(150 * 1024);
+        int versions = args.length > 1 ? Integer.parseInt(args[1]) : 34;
+
+        Path dir = Files.createTempDirectory("gitlet-delta-bench");
+        try {
+            File blobDir = dir.resolve("blobs").toFile();
+            blobDir.mkdir();
+            dir.resolve("packs").toFile().mkdir();
+            ObjectStore store = new ObjectStore(blobDir, ObjectStore.TYPE_BLOB,
+                    new PackStore(dir.resolve("packs").toFile()), dir.resolve("blobs.bloom").toFile());
+            BlobService writer = new BlobService(store, new LruCache<>(0, content -> content.length));
+            File file = dir.resolve("version").toFile();
+            Random random = new Random(61);
+
+            System.out.printf("%-8s %5s %10s %10s %12s%n", "version", "depth", "bytes", "stored", "rebuild");
+            String previous = null;
+            long storedTotal = 0;
+            long wholeTotal = 0;
+            for (int version = 0; version < versions; version += 1) {
+                if (version > 0) {
+                    int at = random.nextInt(lines.size());
+                    lines.add(at, "        // version " + version + " inserted this line");
+                    int changed = random.nextInt(lines.size());
+                    lines.set(changed, lines.get(changed) + " // changed in version " + version);
+                }
+                byte[] content = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+                Files.write(file.toPath(), content);
+
+                long before = size(blobDir.toPath());
+                String blobId = writer.saveBlob(file, previous);
+                long stored = size(blobDir.toPath()) - before;
+                storedTotal += stored;
+                wholeTotal += content.length;
+
+                long rebuild = medianRebuild(store, blobId, content);
+                System.out.printf("%-8d %5d %10d %10d %9.2f ms%n",
+                        version, depth(store, blobId), content.length, stored, rebuild / 1e6);
+                previous = blobId;
+            }
+            System.out.printf("all %d versions: %d bytes stored, %d bytes of content%n",
+                    versions, storedTotal, wholeTotal);
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /** Rebuild the blob READS times, each through a new service with no cache, and check it. */
+    private static long medianRebuild(ObjectStore store, String blobId, byte[] expected) {
+        long[] times = new long[READS];
+        for (int i = 0; i < READS; i += 1) {
+            BlobService reader = new BlobService(store, new LruCache<>(0, content -> content.length));
+            long start = System.nanoTime();
+            byte[] content = reader.readBlob(blobId);
+            times[i] = System.nanoTime() - start;
+            if (!Arrays.equals(content, expected)) {
+                throw new AssertionError("blob " + blobId + " was not rebuilt as it was saved");
+            }
+        }
+        Arrays.sort(times);
+        return times[READS / 2];
+    }
+
+    /** @return the number of deltas applied to rebuild the blob, as its delta header records it */
+    private static int depth(ObjectStore store, String blobId) throws IOException {
+        ObjectStore.StoredObject blob = store.open(blobId);
+        try (InputStream in = blob.getContent()) {
+            return blob.getType() == ObjectStore.TYPE_DELTA ? Delta.depthOf(in.readNBytes(Delta.HEADER_LENGTH)) : 0;
+        }
+    }
+
+    private static long size(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    /** Lines of Java-like source, varied enough not to compress to nothing. */
+    private static List<String> generateSource(int length) {
+        Random random = new Random(7);
+        String[] types = {"int", "long", "String", "List<String>", "Map<String, Integer>", "boolean"};
+        List<String> lines = new ArrayList<>();
+        int size = 0;
+        for (int i = 0; size < length; i += 1) {
+            String line = i % 12 == 0
+                    ? "    /** Returns the value of field" + i + ", read " + random.nextInt(1000) + " times. */"
+                    : String.format("    private %s field%d = compute(%d, \"%s\");",
+                            types[random.nextInt(types.length)], i, random.nextInt(100000),
+                            Long.toString(random.nextLong(), 36));
+            lines.add(line);
+            size += line.length() + 1;
+        }
+        return lines;
+    }
+}
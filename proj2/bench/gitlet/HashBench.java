@@ -0,0 +1,152 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/** Hashing of working files, from 1 KB to 1 GB: Utils.sha1(File) against
+ *  the ways it could read the file, an 8 KB stream as it did before, a
+ *  file channel into a direct or a heap buffer, and read-only mappings.
+ *  Each file is hashed enough times per round to cover 256 MB, at least
+ *  three, and the median of the rounds is printed; the page cache is warm.
+ *  Every way must give the id the blob store gives the file.
+ *  <pre>
+ *      javac -d classes gitlet/*.java bench/gitlet/HashBench.java
+ *      java -cp classes gitlet.HashBench [largest size in MB [rounds]]
+ *  </pre>
+ *  from proj2; sizes go up 32 times at each step, to 1024 MB by default,
+ *  and there are 5 rounds.  Each file is written to a temporary directory
+ *  and deleted once timed, so the directory needs room for the largest.
+ */
+public class HashBench {
+    private static final int BUFFER = 64 * 1024;
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    private static final long COVERED = 256L * 1024 * 1024;
+
+    private interface Hash {
+        String hash(Path file) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long largest = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Map<String, Hash> hashes = new LinkedHashMap<>();
+        hashes.put("Utils.sha1", file -> Utils.sha1(file.toFile()));
+        hashes.put("8 KB stream", HashBench::stream);
+        hashes.put("direct channel", file -> channel(file, ByteBuffer.allocateDirect(BUFFER)));
+        hashes.put("heap channel", file -> channel(file, ByteBuffer.allocate(BUFFER)));
+        hashes.put("mmap", HashBench::mapped);
+
+        Path dir = Files.createTempDirectory("gitlet-hash-bench");
+        try {
+            System.out.printf("%-7s", "size");
+            hashes.keySet().forEach(name -> System.out.printf("  %-22s", name));
+            System.out.println();
+            for (long size = 1024; size <= largest; size *= 32) {
+                Path file = dir.resolve("f" + size);
+                writeRandom(file, size);
+                String blobId = blobId(dir, file);
+                int times = (int) Math.max(3, Math.min(2000, COVERED / size));
+                Map<String, List<Long>> medians = new LinkedHashMap<>();
+                for (int round = 0; round < rounds; round += 1) {
+                    for (Map.Entry<String, Hash> hash : hashes.entrySet()) {
+                        if (!hash.getValue().hash(file).equals(blobId)) {
+                            throw new AssertionError(hash.getKey() + " of " + size + " bytes is not the blob id");
+                        }
+                        long start = System.nanoTime();
+                        for (int i = 0; i < times; i += 1) {
+                            hash.getValue().hash(file);
+                        }
+                        medians.computeIfAbsent(hash.getKey(), key -> new ArrayList<>())
+                                .add((System.nanoTime() - start) / times);
+                    }
+                }
+                System.out.printf("%-7s", size >= 1 << 20 ? (size >> 20) + " MB" : (size >> 10) + " KB");
+                for (List<Long> nanos : medians.values()) {
+                    nanos.sort(null);
+                    long median = nanos.get(nanos.size() / 2);
+                    String time = median >= 1_000_000 ? String.format("%.2f ms", median / 1e6)
+                            : String.format("%d us", median / 1000);
+                    System.out.printf("  %-22s", String.format("%s (%.0f MB/s)", time, size / (median / 1e9) / (1 << 20)));
+                }
+                System.out.println();
+                Files.delete(file);
+            }
+        } finally {
+            Benchmarks.delete(dir.toFile());
+        }
+    }
+
+    /** @return the id the blob store gives the file */
+    private static String blobId(Path dir, Path file) throws IOException {
+        File blobDir = dir.resolve("blobs").toFile();
+        File packDir = dir.resolve("packs").toFile();
+        blobDir.mkdir();
+        packDir.mkdir();
+        ObjectStore store = new ObjectStore(blobDir, ObjectStore.TYPE_BLOB, new PackStore(packDir),
+                dir.resolve("blobs.bloom").toFile());
+        String blobId = new BlobService(store, new LruCache<>(0, content -> content.length)).saveBlob(file.toFile());
+        Benchmarks.delete(blobDir);
+        Benchmarks.delete(packDir);
+        Files.deleteIfExists(dir.resolve("blobs.bloom"));
+        return blobId;
+    }
+
+    private static void writeRandom(Path file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] block = new byte[1 << 20];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private static String stream(Path file) throws IOException {
+        MessageDigest digest = Utils.sha1Digest();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Utils.toHex(digest.digest());
+    }
+
+    private static String channel(Path file, ByteBuffer buffer) throws IOException {
+        MessageDigest digest = Utils.sha1Digest();
+        try (FileChannel channel = FileChannel.open(file)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return Utils.toHex(digest.digest());
+    }
+
+    private static String mapped(Path file) throws IOException {
+        MessageDigest digest = Utils.sha1Digest();
+        try (FileChannel channel = FileChannel.open(file)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_WINDOW, size - position)));
+            }
+        }
+        return Utils.toHex(digest.digest());
+    }
+}
@@ -0,0 +1,138 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static gitlet.Benchmarks.*;
+
+/** Working trees with many files in many directories: the walk and the
+ *  hashing of the whole tree, then add, status and checkout as a user runs
+ *  them, with the common fork-join pool limited to one thread and at its
+ *  default size.  The repository has FILES files spread over DIRECTORIES
+ *  directories of two levels; branch other changes 100 of them.
+ *  <pre>
+ *      javac -d classes gitlet/*.java bench/gitlet/Benchmarks.java bench/gitlet/TreeBench.java
+ *      java -cp classes gitlet.TreeBench [files [directories [rounds]]]
+ *  </pre>
+ *  from proj2; 100,000 files in 5,000 directories and 5 rounds by default.
+ */
+public class TreeBench {
+    private static final int CHANGED = 100;
+    /** Whether branch other is checked out. */
+    private static boolean onOther = false;
+
+    public static void main(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int directories = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        File dir = createTempDirectory("gitlet-tree-bench");
+        try {
+            long start = System.nanoTime();
+            setUp(dir, files, directories);
+            System.out.printf("%d files in %d directories, set up in %d s%n",
+                    files, directories, (System.nanoTime() - start) / 1_000_000_000);
+
+            walkAndHash(dir, rounds);
+            for (String parallelism : new String[] {"1", null}) {
+                List<String> options = parallelism == null ? List.of()
+                        : List.of("-Djava.util.concurrent.ForkJoinPool.common.parallelism=" + parallelism);
+                System.out.printf("fork-join parallelism %s:%n", parallelism == null ? "default" : parallelism);
+                commands(dir, fileName(files - 1, directories), "file " + (files - 1) + "\n", options, rounds);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static String fileName(int i, int directories) {
+        int d = i % directories;
+        return "d" + d / 50 + "/e" + d % 50 + "/f" + i;
+    }
+
+    /** Commit every file on master, then CHANGED of them on branch other, and check out master again. */
+    private static void setUp(File dir, int files, int directories) {
+        Benchmarks.setUp(dir, "init");
+        for (int i = 0; i < files; i += 1) {
+            String fileName = fileName(i, directories);
+            write(dir, fileName, "file " + i + "\n");
+            stage(dir, fileName);
+        }
+        Benchmarks.setUp(dir, "commit", "files");
+        Benchmarks.setUp(dir, "branch", "other");
+        Benchmarks.setUp(dir, "checkout", "other");
+        for (int i = 0; i < CHANGED; i += 1) {
+            String fileName = fileName(i * (files / CHANGED), directories);
+            append(dir, fileName, "changed on other\n");
+            stage(dir, fileName);
+        }
+        Benchmarks.setUp(dir, "commit", "changes");
+        Benchmarks.setUp(dir, "checkout", "master");
+        // the first status hashes every file and writes the stat index
+        gitlet(dir, "status");
+    }
+
+    /** The walk and the hashing of every file, in this JVM, with no stat index to skip any. */
+    private static void walkAndHash(File dir, int rounds) {
+        List<Long> walks = new ArrayList<>();
+        List<Long> hashes = new ArrayList<>();
+        File scratch = createTempDirectory("gitlet-tree-bench-index");
+        try {
+            for (int round = 0; round < rounds; round += 1) {
+                File index = new File(scratch, "index" + round);
+                WorkDirService workDir = new WorkDirService(dir, new File(scratch, "checkout"),
+                        new StatIndex(index, new File(scratch, "index.head" + round)),
+                        new WorkDirMonitor(dir, new File(scratch, "monitor")));
+                long start = System.nanoTime();
+                List<String> fileNames = workDir.getAllFileNames();
+                walks.add(System.nanoTime() - start);
+                start = System.nanoTime();
+                Map<String, String> blobIds = workDir.getHashedFiles(fileNames);
+                hashes.add(System.nanoTime() - start);
+                if (blobIds.size() != fileNames.size()) {
+                    throw new AssertionError("hashed " + blobIds.size() + " of " + fileNames.size() + " files");
+                }
+            }
+        } finally {
+            delete(scratch);
+        }
+        System.out.printf("in one JVM, %d threads in the common pool:%n",
+                ForkJoinPool.commonPool().getParallelism());
+        System.out.printf("  walk of the tree        median %5d ms  (%s)%n", medianMillis(walks), millis(walks));
+        System.out.printf("  hashing every file      median %5d ms  (%s)%n", medianMillis(hashes), millis(hashes));
+    }
+
+    /**
+     * Add of one changed file, status, and checkout of the other branch, each in a new JVM
+     * @param changed a file both branches have, changed and added each round
+     * @param content what both branches have in CHANGED, written back before each checkout
+     */
+    private static void commands(File dir, String changed, String content, List<String> options, int rounds) {
+        List<Long> adds = new ArrayList<>();
+        List<Long> statuses = new ArrayList<>();
+        List<Long> checkouts = new ArrayList<>();
+        for (int round = 0; round < rounds; round += 1) {
+            append(dir, changed, "round " + round + "\n");
+            adds.add(check(gitlet(dir, options, "add", changed)).nanos);
+            statuses.add(gitlet(dir, options, "status").nanos);
+            // checkout clears the staging area; the changed file is written back so it is not rewritten
+            write(dir, changed, content);
+            onOther = !onOther;
+            checkouts.add(check(gitlet(dir, options, "checkout", onOther ? "other" : "master")).nanos);
+        }
+        System.out.printf("  add of one changed file median %5d ms  (%s)%n", medianMillis(adds), millis(adds));
+        System.out.printf("  status                  median %5d ms  (%s)%n", medianMillis(statuses), millis(statuses));
+        System.out.printf("  checkout (%d files)    median %5d ms  (%s)%n",
+                CHANGED, medianMillis(checkouts), millis(checkouts));
+    }
+
+    private static Run check(Run run) {
+        if (!run.output.isEmpty()) {
+            throw new IllegalStateException(run.output);
+        }
+        return run;
+    }
+}
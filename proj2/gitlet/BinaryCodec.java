@@ -0,0 +1,239 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** The binary encoding of commits, trees and branches.
+ *  <pre>
+ *      commit  'c' version id (20 bytes) flags (1 byte: has parent, has second parent)
+ *              [parent (20 bytes)] [second parent (20 bytes)]
+ *              timestamp (varint, epoch milliseconds) message (string)
+ *              version 1: count (varint) then count times: file name (string) blob id (20 bytes)
+ *              version 2: tree id (20 bytes)
+ *      tree    't' version count (varint) then count times, sorted by name:
+ *              kind (1 byte) name (string) id (20 bytes) [entries below (varint), shards only]
+ *      branch  'b' version name (string) commit id (20 bytes)
+ *      string  length (varint) then the UTF-8 bytes
+ *  </pre>
+ *  The header of a commit comes before its tracked files, so it is read
+ *  without decoding them.  Commits of version 1, written before trees,
+ *  embed their tracked files and are still read.  Objects written with Java
+ *  serialization before this encoding start with the serialization magic
+ *  0xACED and are still read with it.
+ */
+class BinaryCodec {
+    private static final byte COMMIT = 'c';
+    private static final byte BRANCH = 'b';
+    private static final byte TREE = 't';
+    private static final byte VERSION = 1;
+    private static final byte COMMIT_VERSION = 2;
+    private static final byte SERIALIZED = (byte) 0xAC;
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+    private static final int HAS_PARENT = 1;
+    private static final int HAS_SECOND_PARENT = 2;
+
+    static byte[] encodeCommit(Commit commit) {
+        if (commit.getTree() == null) {
+            return encodeCommitFiles(commit);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        writeCommitHeader(out, commit, COMMIT_VERSION);
+        out.writeBytes(fromHex(commit.getTree()));
+        return out.toByteArray();
+    }
+
+    /** Encode a commit without tree in version 1, embedding its tracked files. */
+    private static byte[] encodeCommitFiles(Commit commit) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 64 * commit.getTrackedBlobs().size());
+        writeCommitHeader(out, commit, VERSION);
+        // sorted, so that the same commit always encodes to the same bytes
+        Map<String, String> tracked = commit.getTrackedBlobs();
+        String[] fileNames = tracked.keySet().toArray(new String[0]);
+        Arrays.sort(fileNames);
+        writeVarint(out, fileNames.length);
+        for (String fileName : fileNames) {
+            writeString(out, fileName);
+            out.writeBytes(fromHex(tracked.get(fileName)));
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeCommitHeader(ByteArrayOutputStream out, Commit commit, byte version) {
+        out.write(COMMIT);
+        out.write(version);
+        out.writeBytes(fromHex(commit.getCommitId()));
+        int flags = (commit.getParent() != null ? HAS_PARENT : 0)
+                | (commit.getSecondParent() != null ? HAS_SECOND_PARENT : 0);
+        out.write(flags);
+        if (commit.getParent() != null) out.writeBytes(fromHex(commit.getParent()));
+        if (commit.getSecondParent() != null) out.writeBytes(fromHex(commit.getSecondParent()));
+        writeVarint(out, commit.getTimestamp().getTime());
+        writeString(out, commit.getMessage());
+    }
+
+    static Commit decodeCommit(byte[] data) {
+        if (data.length > 0 && data[0] == SERIALIZED) {
+            return deserialize(data, Commit.class);
+        }
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            CommitMeta meta = readCommitHeader(in);
+            if (data[1] == COMMIT_VERSION) {
+                return new Commit(meta.getCommitId(), meta.getMessage(), new Date(meta.getTimestamp()),
+                        meta.getParent(), meta.getSecondParent(), readId(in), null);
+            }
+            int count = (int) readVarint(in);
+            Map<String, String> tracked = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+            for (int i = 0; i < count; i += 1) {
+                tracked.put(readString(in), readId(in));
+            }
+            return new Commit(meta.getCommitId(), meta.getMessage(), new Date(meta.getTimestamp()),
+                    meta.getParent(), meta.getSecondParent(), null, tracked);
+        } catch (BufferUnderflowException excp) {
+            throw error("Corrupted commit.");
+        }
+    }
+
+    /** Decode the header of a commit only, skipping its tracked files. */
+    static CommitMeta decodeCommitMeta(byte[] data) {
+        if (data.length > 0 && data[0] == SERIALIZED) {
+            return deserialize(data, Commit.class).getMeta();
+        }
+        try {
+            return readCommitHeader(ByteBuffer.wrap(data));
+        } catch (BufferUnderflowException excp) {
+            throw error("Corrupted commit.");
+        }
+    }
+
+    static byte[] encodeTree(Tree tree) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 48 * tree.getEntries().size());
+        out.write(TREE);
+        out.write(VERSION);
+        writeVarint(out, tree.getEntries().size());
+        for (Map.Entry<String, Tree.Entry> entry : tree.getEntries().entrySet()) {
+            Tree.Entry value = entry.getValue();
+            out.write(value.getKind());
+            writeString(out, entry.getKey());
+            out.writeBytes(fromHex(value.getId()));
+            if (value.getKind() == Tree.SHARD) {
+                writeVarint(out, value.getCount());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static Tree decodeTree(byte[] data) {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            checkFormat(in, TREE, VERSION);
+            int count = (int) readVarint(in);
+            SortedMap<String, Tree.Entry> entries = new TreeMap<>();
+            for (int i = 0; i < count; i += 1) {
+                byte kind = in.get();
+                String name = readString(in);
+                String id = readId(in);
+                entries.put(name, new Tree.Entry(kind, id, kind == Tree.SHARD ? readVarint(in) : 0));
+            }
+            return new Tree(entries);
+        } catch (BufferUnderflowException excp) {
+            throw error("Corrupted tree.");
+        }
+    }
+
+    static byte[] encodeBranch(Branch branch) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(BRANCH);
+        out.write(VERSION);
+        writeString(out, branch.getBranchName());
+        out.writeBytes(fromHex(branch.getCommitId()));
+        return out.toByteArray();
+    }
+
+    static Branch decodeBranch(byte[] data) {
+        if (data.length > 0 && data[0] == SERIALIZED) {
+            return deserialize(data, Branch.class);
+        }
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            checkFormat(in, BRANCH, VERSION);
+            String name = readString(in);
+            return new Branch(name, readId(in));
+        } catch (BufferUnderflowException excp) {
+            throw error("Corrupted branch.");
+        }
+    }
+
+    private static CommitMeta readCommitHeader(ByteBuffer in) {
+        checkFormat(in, COMMIT, COMMIT_VERSION);
+        String commitId = readId(in);
+        int flags = in.get();
+        String parent = (flags & HAS_PARENT) != 0 ? readId(in) : null;
+        String secondParent = (flags & HAS_SECOND_PARENT) != 0 ? readId(in) : null;
+        long timestamp = readVarint(in);
+        return new CommitMeta(commitId, parent, secondParent, timestamp, readString(in));
+    }
+
+    /** Check the format byte and that the version is at most MAXVERSION. */
+    private static void checkFormat(ByteBuffer in, byte format, byte maxVersion) {
+        if (in.get() != format) {
+            throw error("Corrupted object, unknown format.");
+        }
+        byte version = in.get();
+        if (version < 1 || version > maxVersion) {
+            throw error("Unsupported object version %d.", version);
+        }
+    }
+
+    private static String readId(ByteBuffer in) {
+        byte[] id = new byte[ID_LENGTH];
+        in.get(id);
+        return toHex(id);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -1,26 +1,325 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import static gitlet.Utils.*;
 
 public class BlobService {
-    private final File BLOB_DIR;
+    /** Files larger than this are always stored whole, so deltas stay in memory. */
+    static final long MAX_DELTA_SIZE = 4 * 1024 * 1024;
+    /** Longest chain of deltas to walk to rebuild a blob. */
+    static final int MAX_DELTA_DEPTH = 16;
+    /** Files larger than this are split into chunks shared between blobs. */
+    static final long CHUNKING_THRESHOLD = MAX_DELTA_SIZE;
+    /** Number of threads compressing and writing the chunks of a file. */
+    private static final int CHUNK_THREADS = Runtime.getRuntime().availableProcessors();
 
-    public BlobService(File blobDir) {
-        BLOB_DIR = blobDir;
+    private final ObjectStore blobStore;
+    private final LruCache<byte[]> blobCache;
+
+    public BlobService(ObjectStore blobStore, LruCache<byte[]> blobCache) {
+        this.blobStore = blobStore;
+        this.blobCache = blobCache;
     }
 
+    /**
+     * Save the raw bytes of file as a blob
+     * the file is hashed and compressed in one streaming pass, whatever its size
+     * files larger than CHUNKING_THRESHOLD are stored as a list of chunks
+     * @param file
+     * @return the blob id, the sha1 of the file content
+     */
     public String saveBlob(File file) {
-        String blobContent = readContentsAsString(file);
-        String blobId = sha1(blobContent);
-        File blob = join(BLOB_DIR,blobId);
-        writeContents(blob,blobContent);
+        if (file.length() > CHUNKING_THRESHOLD) {
+            return saveChunked(file);
+        }
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return blobStore.write(file.length(), in);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Save the raw bytes of file as a blob, stored as a delta against the blob
+     * baseId, the previous version of the file, when that is much smaller.
+     * Large files and bases at the end of a full delta chain are stored whole.
+     * @param file
+     * @param baseId
+     * @return the blob id, the sha1 of the file content
+     */
+    public String saveBlob(File file, String baseId) {
+        if (baseId == null || file.length() > MAX_DELTA_SIZE || !blobStore.contains(baseId)) {
+            return saveBlob(file);
+        }
+        byte[] content = readContents(file);
+        String blobId = sha1(content);
+        // an existing blob is never rewritten, so no delta work for it
+        if (blobStore.contains(blobId)) {
+            return blobId;
+        }
+
+        ObjectStore.StoredObject base = blobStore.open(baseId);
+        int depth = getDeltaDepth(base);
+        if (depth < MAX_DELTA_DEPTH && base.getLength() <= MAX_DELTA_SIZE) {
+            byte[] delta = Delta.encode(baseId, depth + 1, readBlob(baseId), content);
+            if (delta.length < content.length / 2) {
+                blobStore.writeEncoded(blobId, ObjectStore.TYPE_DELTA, content.length, delta);
+                return blobId;
+            }
+        }
+        blobStore.write(blobId, content);
         return blobId;
     }
 
-    public File getBlob(String blobName) {
-        return join(BLOB_DIR,blobName);
+    /**
+     * Open the content of blob for reading
+     * blobs small enough for the cache are read whole and cached, larger ones are streamed
+     * @param blobName
+     * @return
+     */
+    public InputStream openBlob(String blobName) {
+        byte[] cached = blobCache.get(blobName);
+        if (cached != null) {
+            return new ByteArrayInputStream(cached);
+        }
+        ObjectStore.StoredObject blob = openStored(blobName);
+        if (blob.getType() == ObjectStore.TYPE_DELTA || blobCache.accepts(blob.getLength())) {
+            return new ByteArrayInputStream(readAndCache(blobName, blob));
+        }
+        if (blob.getType() == ObjectStore.TYPE_CHUNKED) {
+            return openChunks(blob);
+        }
+        return blob.getContent();
+    }
+
+    /**
+     * Read the whole content of blob, rebuilding it from its delta chain if needed
+     * @param blobName
+     * @return
+     */
+    public byte[] readBlob(String blobName) {
+        byte[] cached = blobCache.get(blobName);
+        if (cached != null) {
+            return cached;
+        }
+        return readAndCache(blobName, openStored(blobName));
+    }
+
+    /**
+     * @param blobName
+     * @return the ids of the blobs blobName is rebuilt from: its delta base or its chunks,
+     *         none for a blob stored whole or missing
+     */
+    public List<String> getReferences(String blobName) {
+        ObjectStore.StoredObject blob = blobStore.open(blobName);
+        if (blob == null) {
+            return List.of();
+        }
+        if (blob.getType() == ObjectStore.TYPE_CHUNKED) {
+            return readManifest(blob);
+        }
+        try (InputStream in = blob.getContent()) {
+            if (blob.getType() == ObjectStore.TYPE_DELTA) {
+                return List.of(Delta.baseOf(in.readNBytes(Delta.HEADER_LENGTH)));
+            }
+            return List.of();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * @param blobName
+     * @return the length of the content of the blob, read from its header
+     */
+    public long getSize(String blobName) {
+        byte[] cached = blobCache.get(blobName);
+        if (cached != null) {
+            return cached.length;
+        }
+        long size = blobStore.size(blobName);
+        if (size < 0) {
+            throw error("No blob with id %s.", blobName);
+        }
+        return size;
+    }
+
+    /**
+     * @return the hit rate statistics of the blob cache
+     */
+    public String getCacheStats() {
+        return blobCache.getStats();
+    }
+
+    private ObjectStore.StoredObject openStored(String blobName) {
+        ObjectStore.StoredObject blob = blobStore.open(blobName);
+        if (blob == null) {
+            throw error("No blob with id %s.", blobName);
+        }
+        return blob;
+    }
+
+    private byte[] readAndCache(String blobName, ObjectStore.StoredObject blob) {
+        byte[] content;
+        if (blob.getType() == ObjectStore.TYPE_DELTA) {
+            content = applyDelta(blob);
+        } else {
+            try (InputStream in = blob.getType() == ObjectStore.TYPE_CHUNKED ? openChunks(blob) : blob.getContent()) {
+                content = in.readAllBytes();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        blobCache.put(blobName, content);
+        return content;
+    }
+
+    /**
+     * Split file into content-defined chunks and save each chunk as a blob of its own,
+     * the store does not write again chunks already stored by other versions or other files.
+     * The file is read and hashed once, in order, while the chunks are compressed
+     * and written in parallel, with a bounded number of chunks in memory.
+     * @param file
+     * @return the blob id, the sha1 of the whole file content
+     */
+    private String saveChunked(File file) {
+        MessageDigest digest = sha1Digest();
+        ExecutorService pool = Executors.newFixedThreadPool(CHUNK_THREADS);
+        Semaphore inFlight = new Semaphore(2 * CHUNK_THREADS);
+        List<Future<String>> chunkIds = new ArrayList<>();
+        List<Integer> chunkLengths = new ArrayList<>();
+        try (InputStream in = new DigestInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE), digest)) {
+            Chunker chunker = new Chunker(in);
+            byte[] chunk;
+            while ((chunk = chunker.next()) != null) {
+                byte[] content = chunk;
+                inFlight.acquire();
+                chunkLengths.add(content.length);
+                chunkIds.add(pool.submit(() -> {
+                    try {
+                        return saveChunk(content);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(manifest);
+            out.writeInt(chunkIds.size());
+            for (int i = 0; i < chunkIds.size(); i += 1) {
+                out.write(fromHex(chunkIds.get(i).get()));
+                out.writeInt(chunkLengths.get(i));
+            }
+            String blobId = toHex(digest.digest());
+            blobStore.writeEncoded(blobId, ObjectStore.TYPE_CHUNKED, file.length(), manifest.toByteArray());
+            return blobId;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw error("Interrupted while saving %s.", file.getName());
+        } catch (ExecutionException excp) {
+            throw new IllegalArgumentException(excp.getCause().getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private String saveChunk(byte[] content) {
+        String chunkId = sha1(content);
+        blobStore.write(chunkId, content);
+        return chunkId;
+    }
+
+    /**
+     * Stream the chunks of a chunked blob one after the other, opening each on demand
+     * @param blob
+     * @return
+     */
+    private InputStream openChunks(ObjectStore.StoredObject blob) {
+        Iterator<String> chunks = readManifest(blob).iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                // chunks are streamed past the cache, a large file would flush it
+                return openStored(chunks.next()).getContent();
+            }
+        });
+    }
+
+    /**
+     * Read the chunk ids of a chunked blob and close it
+     * @param blob
+     * @return
+     */
+    private List<String> readManifest(ObjectStore.StoredObject blob) {
+        try (DataInputStream in = new DataInputStream(blob.getContent())) {
+            int count = in.readInt();
+            List<String> chunks = new ArrayList<>(count);
+            byte[] chunkId = new byte[UID_LENGTH / 2];
+            for (int i = 0; i < count; i += 1) {
+                in.readFully(chunkId);
+                in.readInt();
+                chunks.add(toHex(chunkId));
+            }
+            return chunks;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private byte[] applyDelta(ObjectStore.StoredObject blob) {
+        byte[] delta;
+        try (InputStream in = blob.getContent()) {
+            delta = in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return Delta.apply(readBlob(Delta.baseOf(delta)), delta);
+    }
+
+    /**
+     * Read the delta depth of a stored blob and close it
+     * @param blob
+     * @return the number of deltas to apply to rebuild blob, 0 for a blob stored whole
+     */
+    private int getDeltaDepth(ObjectStore.StoredObject blob) {
+        try (InputStream in = blob.getContent()) {
+            if (blob.getType() != ObjectStore.TYPE_DELTA) {
+                return 0;
+            }
+            return Delta.depthOf(in.readNBytes(Delta.HEADER_LENGTH));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
 }
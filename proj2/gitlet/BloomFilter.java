@@ -0,0 +1,121 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/** A Bloom filter over object ids.
+ *  mightContain never answers false for an id that was added, and answers
+ *  true for an id that was not added with a probability of about 1% while
+ *  the filter holds no more than its capacity.  Ids are sha1 hashes already,
+ *  so the bit positions are derived from the id itself by double hashing.
+ */
+class BloomFilter {
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASHES = 7;
+    private static final byte[] MAGIC = {'G', 'B', 'L', 'M'};
+
+    private final long[] bits;
+    private final int capacity;
+    private int count;
+
+    BloomFilter(int capacity) {
+        this.capacity = capacity;
+        this.bits = new long[(int) (((long) capacity * BITS_PER_ENTRY + 63) / 64)];
+    }
+
+    private BloomFilter(int capacity, int count, long[] bits) {
+        this.capacity = capacity;
+        this.count = count;
+        this.bits = bits;
+    }
+
+    /** Add the object id ID, a full sha1 hexadecimal numeral. */
+    synchronized void add(String id) {
+        long h1 = Long.parseUnsignedLong(id.substring(0, 16), 16);
+        long h2 = Long.parseUnsignedLong(id.substring(16, 32), 16);
+        long size = (long) bits.length * 64;
+        for (int i = 0; i < HASHES; i += 1) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, size);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        count += 1;
+    }
+
+    /** Return false if ID was definitely never added. */
+    synchronized boolean mightContain(String id) {
+        long h1 = Long.parseUnsignedLong(id.substring(0, 16), 16);
+        long h2 = Long.parseUnsignedLong(id.substring(16, 32), 16);
+        long size = (long) bits.length * 64;
+        for (int i = 0; i < HASHES; i += 1) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, size);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return true if the filter holds more ids than it was sized for. */
+    synchronized boolean isFull() {
+        return count > capacity;
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    /** Write the filter to FILE, replacing it atomically. */
+    synchronized void save(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp.toPath()), BUFFER_SIZE))) {
+                out.write(MAGIC);
+                out.writeInt(capacity);
+                out.writeInt(count);
+                out.writeInt(bits.length);
+                for (long word : bits) {
+                    out.writeLong(word);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the filter saved in FILE, or null if there is none. */
+    static BloomFilter load(File file) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE))) {
+            byte[] magic = in.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) {
+                return null;
+            }
+            int capacity = in.readInt();
+            int count = in.readInt();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i += 1) {
+                bits[i] = in.readLong();
+            }
+            return new BloomFilter(capacity, count, bits);
+        } catch (NoSuchFileException | EOFException excp) {
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
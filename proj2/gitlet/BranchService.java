@@ -1,12 +1,16 @@
 package gitlet;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static gitlet.Utils.*;
 
 public class BranchService {
     private final File BRANCH_DIR;
+    /** The commit id of each branch read or saved by this process. */
+    private final Map<String, String> commitIds = new HashMap<>();
 
     public BranchService(File branchDir) {
         BRANCH_DIR = branchDir;
@@ -18,18 +22,24 @@ public class BranchService {
      */
     public void saveBranch(Branch branch) {
         File branchFile = join(BRANCH_DIR,branch.getBranchName());
-        writeObject(branchFile,branch);
+        writeContents(branchFile, BinaryCodec.encodeBranch(branch));
+        commitIds.put(branch.getBranchName(), branch.getCommitId());
     }
 
     /**
      * Read branch file and return branch object
+     * the file is read once, later calls return a new branch object from the cached commit id
      * @param branchName
      * @return
      */
     public Branch getBranch(String branchName) {
+        String commitId = commitIds.get(branchName);
+        if (commitId != null) return new Branch(branchName, commitId);
         File branchFile = join(BRANCH_DIR,branchName);
         if (!branchFile.exists()) return null;
-        return Utils.readObject(branchFile, Branch.class);
+        Branch branch = BinaryCodec.decodeBranch(readContents(branchFile));
+        commitIds.put(branchName, branch.getCommitId());
+        return branch;
     }
 
     public boolean isExist(String branchName) {
@@ -56,6 +66,7 @@ public class BranchService {
 
     public void deleteBranch(String branchName) {
         File file = join(BRANCH_DIR,branchName);
+        commitIds.remove(branchName);
         if (file.exists())
             file.delete();
     }
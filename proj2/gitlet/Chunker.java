@@ -0,0 +1,58 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Splits a stream into content-defined chunks.
+ *  A gear rolling hash runs over the bytes of the current chunk and a chunk
+ *  ends where the low bits of the hash are all zero, so boundaries depend on
+ *  the content around them and not on their offset: inserting or appending
+ *  bytes only changes the chunks around the edit.  Chunks are between
+ *  MIN_CHUNK and MAX_CHUNK bytes, a boundary being expected every
+ *  AVERAGE_CHUNK bytes past the minimum.
+ */
+class Chunker {
+    static final int MIN_CHUNK = 64 * 1024;
+    static final int AVERAGE_CHUNK = 256 * 1024;
+    static final int MAX_CHUNK = 1024 * 1024;
+
+    private static final int MASK = AVERAGE_CHUNK - 1;
+    /** Random values for every byte, from a fixed seed so that every
+     *  repository cuts the same content at the same places. */
+    private static final int[] GEAR = new Random(0x6769746c6574L).ints(256).toArray();
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[MAX_CHUNK];
+    private int filled;
+    private boolean eof;
+
+    Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    /** Return the next chunk of the stream, or null at its end. */
+    byte[] next() throws IOException {
+        if (!eof && filled < MAX_CHUNK) {
+            int n = in.readNBytes(buffer, filled, MAX_CHUNK - filled);
+            filled += n;
+            eof = filled < MAX_CHUNK;
+        }
+        if (filled == 0) return null;
+
+        int cut = filled;
+        int hash = 0;
+        for (int i = MIN_CHUNK; i < filled; i += 1) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ((hash & MASK) == 0) {
+                cut = i + 1;
+                break;
+            }
+        }
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+        System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+        filled -= cut;
+        return chunk;
+    }
+}
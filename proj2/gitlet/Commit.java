@@ -3,14 +3,21 @@ package gitlet;
 import java.io.File;
 import java.io.Serializable;
 import java.util.*;
+import java.util.function.Function;
 
 import static gitlet.Utils.join;
 import static gitlet.Utils.sha1;
 
 /** Represents a gitlet commit object.
+ *  A commit names the tree of its files; the files are read from the tree
+ *  the first time they are asked for.  Commits written before trees have no
+ *  tree and carry their tracked files themselves.
  *  @author Ahmed Mabrouk
  */
 public class Commit implements Serializable {
+    /** The id Java serialization computed for the original class, kept so that
+     *  adding methods does not make the commits already stored unreadable. */
+    private static final long serialVersionUID = 8273562922253640481L;
 
     /** commit hash */
     private String commitId;
@@ -19,23 +26,38 @@ public class Commit implements Serializable {
     private Date timestamp;
     private String message;
     private Map<String,String> trackedBlobs;
-    public Commit(String message, Date timestamp, String parent, String secondParent, Map<String,String> trackedBlobs) {
+    /** tree id, null for commits written before trees */
+    private String tree;
+    private transient Function<String, Map<String,String>> treeReader;
+    public Commit(String message, Date timestamp, String parent, String secondParent, String tree) {
         this.message = message;
         this.timestamp = timestamp != null ? timestamp : new Date();
         this.parent = parent;
         this.secondParent = secondParent;
-        this.trackedBlobs = trackedBlobs != null ? trackedBlobs :new HashMap<>();
+        this.tree = tree;
         this.commitId = generateHash();
     }
 
+    /** Recreate the stored commit COMMITID, without hashing it again. */
+    Commit(String commitId, String message, Date timestamp, String parent, String secondParent,
+           String tree, Map<String,String> trackedBlobs) {
+        this.commitId = commitId;
+        this.message = message;
+        this.timestamp = timestamp;
+        this.parent = parent;
+        this.secondParent = secondParent;
+        this.tree = tree;
+        this.trackedBlobs = trackedBlobs;
+    }
+
+    /** The tree id stands for all the files, so the hash does not grow with them. */
     private String generateHash() {
         List<Object> items = new ArrayList<>();
         items.add(message);
         items.add(timestamp.toString());
         items.add((parent == null ? "" : parent));
         items.add((secondParent == null ? "" : secondParent));
-        for (Map.Entry<String,String> blob : trackedBlobs.entrySet())
-            items.add(blob.toString());
+        items.add(tree);
         return sha1(items);
     }
 
@@ -71,12 +93,26 @@ public class Commit implements Serializable {
         this.message = message;
     }
 
-    public Map<String, String> getTrackedBlobs() {
+    /**
+     * @return the tracked files by name, read from the tree on first use
+     */
+    public synchronized Map<String, String> getTrackedBlobs() {
+        if (trackedBlobs == null) {
+            if (treeReader == null) {
+                throw new IllegalStateException("The files of commit " + commitId + " cannot be read.");
+            }
+            trackedBlobs = treeReader.apply(tree);
+        }
         return trackedBlobs;
     }
 
-    public void setTrackedBlobs(Map<String, String> trackedBlobs) {
-        this.trackedBlobs = trackedBlobs;
+    public String getTree() {
+        return tree;
+    }
+
+    /** Set how the files of the tree are read when they are first asked for. */
+    void setTreeReader(Function<String, Map<String,String>> treeReader) {
+        this.treeReader = treeReader;
     }
 
     public String getSecondParent() {
@@ -87,18 +123,27 @@ public class Commit implements Serializable {
         this.secondParent = secondParent;
     }
 
+    /**
+     * @return the header of this commit, without its tracked files
+     */
+    public CommitMeta getMeta() {
+        return new CommitMeta(commitId, parent, secondParent, timestamp.getTime(), message);
+    }
+
     public String log() {
-        StringBuilder logBuilder = new StringBuilder();
-        logBuilder.append("===\n");
-        logBuilder.append(String.format("commit %s\n", this.getCommitId()));
-        if (getParent() != null && getSecondParent() != null) {
-            logBuilder.append(
-                    String.format("Merge: %s %s\n",  getParent().substring(0, 7),  getSecondParent().substring(0, 7))
-            );
-        }
-        logBuilder.append(new Formatter()
-                .format("Date: %1$ta %1$tb %1td %1$tT %1$tY %1$tz\n", this.getTimestamp()));
-        logBuilder.append(String.format("%s\n\n", this.getMessage()));
-        return logBuilder.toString();
+        return getMeta().log();
+    }
+
+    /** Commits are equal when their ids are, however many times they were read. */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Commit)) return false;
+        return Objects.equals(commitId, ((Commit) o).commitId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(commitId);
     }
 }
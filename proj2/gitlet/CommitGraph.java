@@ -0,0 +1,228 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** The commit graph: the parents of every commit as positions in the
+ *  graph, with generation numbers, so that history walks read no commit.
+ *  <pre>
+ *      commit-graph  'GCGR' version count, then count entries sorted by id:
+ *                    id (20 bytes) parent (4 bytes) second parent (4 bytes)
+ *                    generation (4 bytes) timestamp (8 bytes)
+ *  </pre>
+ *  A missing parent is stored as -1.  The generation of a root commit is 1
+ *  and that of any other commit one more than the largest generation of its
+ *  parents, so a commit never has a smaller generation than its ancestors.
+ *  The graph is written whole and covers the commits that existed then;
+ *  newer commits are looked up in the commit store by the caller.
+ */
+public class CommitGraph {
+    private static final byte[] MAGIC = {'G', 'C', 'G', 'R'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 2 * Integer.BYTES;
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+    private static final int ENTRY_LENGTH = ID_LENGTH + 3 * Integer.BYTES + Long.BYTES;
+    private static final int NONE = -1;
+
+    private final File GRAPH_FILE;
+    private MappedByteBuffer graph;
+    private int count;
+
+    public CommitGraph(File graphFile) {
+        GRAPH_FILE = graphFile;
+    }
+
+    /**
+     * @param commitId
+     * @return the graph node of the commit, or null if the graph does not cover it
+     */
+    public Node find(String commitId) {
+        if (!isUid(commitId) || !load()) return null;
+        byte[] id = fromHex(commitId);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareId(mid, id);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return nodeAt(mid, commitId);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replace the graph with the graph of METAS
+     * @param metas the headers of all commits
+     */
+    public synchronized void write(List<CommitMeta> metas) {
+        List<CommitMeta> sorted = new ArrayList<>(metas);
+        sorted.sort(Comparator.comparing(CommitMeta::getCommitId));
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < sorted.size(); i += 1) {
+            positions.put(sorted.get(i).getCommitId(), i);
+        }
+        int[] generations = generations(sorted, positions);
+
+        File tmp = new File(GRAPH_FILE.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp.toPath()), BUFFER_SIZE))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sorted.size());
+                for (int i = 0; i < sorted.size(); i += 1) {
+                    CommitMeta meta = sorted.get(i);
+                    out.write(fromHex(meta.getCommitId()));
+                    out.writeInt(positions.getOrDefault(meta.getParent(), NONE));
+                    out.writeInt(positions.getOrDefault(meta.getSecondParent(), NONE));
+                    out.writeInt(generations[i]);
+                    out.writeLong(meta.getTimestamp());
+                }
+            }
+            graph = null;
+            Files.move(tmp.toPath(), GRAPH_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /** Generation numbers of the sorted commits, computed parents first without recursion. */
+    private static int[] generations(List<CommitMeta> sorted, Map<String, Integer> positions) {
+        int[] generations = new int[sorted.size()];
+        Deque<Integer> pending = new ArrayDeque<>();
+        for (int i = 0; i < sorted.size(); i += 1) {
+            pending.push(i);
+            while (!pending.isEmpty()) {
+                int current = pending.peek();
+                if (generations[current] != 0) {
+                    pending.pop();
+                    continue;
+                }
+                CommitMeta meta = sorted.get(current);
+                int parent = positions.getOrDefault(meta.getParent(), NONE);
+                int secondParent = positions.getOrDefault(meta.getSecondParent(), NONE);
+                if (parent != NONE && generations[parent] == 0) {
+                    pending.push(parent);
+                } else if (secondParent != NONE && generations[secondParent] == 0) {
+                    pending.push(secondParent);
+                } else {
+                    generations[current] = 1 + Math.max(parent == NONE ? 0 : generations[parent],
+                            secondParent == NONE ? 0 : generations[secondParent]);
+                    pending.pop();
+                }
+            }
+        }
+        return generations;
+    }
+
+    private synchronized boolean load() {
+        if (graph != null) return true;
+        try (FileChannel channel = FileChannel.open(GRAPH_FILE.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] magic = new byte[MAGIC.length];
+            mapped.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC) || mapped.getInt(MAGIC.length) != VERSION) {
+                throw error("Corrupted commit graph, run rebuild-index.");
+            }
+            count = mapped.getInt(MAGIC.length + Integer.BYTES);
+            graph = mapped;
+            return true;
+        } catch (NoSuchFileException excp) {
+            return false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private int compareId(int entry, byte[] id) {
+        int position = entryPosition(entry);
+        for (int i = 0; i < ID_LENGTH; i += 1) {
+            int cmp = Integer.compare(graph.get(position + i) & 0xff, id[i] & 0xff);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    private String idAt(int entry) {
+        if (entry == NONE) return null;
+        byte[] id = new byte[ID_LENGTH];
+        graph.get(entryPosition(entry), id);
+        return toHex(id);
+    }
+
+    private Node nodeAt(int entry, String commitId) {
+        int position = entryPosition(entry) + ID_LENGTH;
+        return new Node(commitId,
+                idAt(graph.getInt(position)),
+                idAt(graph.getInt(position + Integer.BYTES)),
+                graph.getInt(position + 2 * Integer.BYTES),
+                graph.getLong(position + 3 * Integer.BYTES));
+    }
+
+    private static int entryPosition(int entry) {
+        return HEADER_LENGTH + entry * ENTRY_LENGTH;
+    }
+
+    /** A commit of the graph: its parents, generation and timestamp. */
+    public static class Node {
+        private final String commitId;
+        private final String parent;
+        private final String secondParent;
+        private final int generation;
+        private final long timestamp;
+
+        public Node(String commitId, String parent, String secondParent, int generation, long timestamp) {
+            this.commitId = commitId;
+            this.parent = parent;
+            this.secondParent = secondParent;
+            this.generation = generation;
+            this.timestamp = timestamp;
+        }
+
+        public String getCommitId() {
+            return commitId;
+        }
+
+        public String getParent() {
+            return parent;
+        }
+
+        public String getSecondParent() {
+            return secondParent;
+        }
+
+        public int getGeneration() {
+            return generation;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** The ids of all commits, to resolve abbreviated ids without listing the store.
+ *  <pre>
+ *      commit-ids       'GCID' version count, then count ids (20 bytes each) sorted
+ *      commit-ids.tail  the ids (20 bytes each) of the commits added since, unsorted
+ *  </pre>
+ *  The sorted ids are memory-mapped and searched by binary search; new ids
+ *  are appended to the tail, which is scanned whole and folded into the
+ *  sorted ids once it holds TAIL_LIMIT ids.
+ */
+public class CommitIdIndex {
+    private static final byte[] MAGIC = {'G', 'C', 'I', 'D'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 2 * Integer.BYTES;
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+    /** Number of ids in the tail after which it is folded into the sorted ids. */
+    private static final int TAIL_LIMIT = 1024;
+
+    private final File INDEX_FILE;
+    private final File TAIL_FILE;
+    private MappedByteBuffer index;
+    private int count;
+    /** The ids of the tail, read once. */
+    private List<String> tail;
+
+    public CommitIdIndex(File indexFile, File tailFile) {
+        INDEX_FILE = indexFile;
+        TAIL_FILE = tailFile;
+    }
+
+    public boolean exists() {
+        return INDEX_FILE.exists();
+    }
+
+    /**
+     * Add the id of a new commit to the tail, folding the tail into the sorted ids when it is full
+     * @param commitId
+     */
+    public synchronized void add(String commitId) {
+        List<String> added = new ArrayList<>(getTail());
+        try {
+            Files.write(TAIL_FILE.toPath(), fromHex(commitId), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        added.add(commitId);
+        tail = added;
+        if (tail.size() >= TAIL_LIMIT) {
+            TreeSet<String> ids = new TreeSet<>(tail);
+            if (load()) {
+                for (int i = 0; i < count; i += 1) {
+                    ids.add(idAt(i));
+                }
+            }
+            rebuild(ids);
+        }
+    }
+
+    /**
+     * @param prefix a lower-case hexadecimal prefix
+     * @param limit
+     * @return the sorted ids starting with prefix, at most limit of them
+     */
+    public List<String> findByPrefix(String prefix, int limit) {
+        TreeSet<String> ids = new TreeSet<>();
+        if (load()) {
+            byte[] lowest = fromHex((prefix + "0".repeat(UID_LENGTH)).substring(0, UID_LENGTH));
+            for (int i = lowerBound(lowest); i < count && ids.size() < limit; i += 1) {
+                String id = idAt(i);
+                if (!id.startsWith(prefix)) break;
+                ids.add(id);
+            }
+        }
+        // an id may be in the sorted ids and the tail after an interrupted fold
+        for (String id : getTail()) {
+            if (id.startsWith(prefix)) ids.add(id);
+        }
+        return List.copyOf(ids).subList(0, Math.min(limit, ids.size()));
+    }
+
+    /**
+     * Replace the index with exactly IDS, and empty the tail
+     * @param ids
+     */
+    public synchronized void rebuild(Collection<String> ids) {
+        TreeSet<String> sorted = new TreeSet<>(ids);
+        File tmp = new File(INDEX_FILE.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp.toPath()), BUFFER_SIZE))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sorted.size());
+                for (String id : sorted) {
+                    out.write(fromHex(id));
+                }
+            }
+            index = null;
+            Files.move(tmp.toPath(), INDEX_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            TAIL_FILE.delete();
+            tail = List.of();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private synchronized List<String> getTail() {
+        if (tail != null) return tail;
+        byte[] content;
+        try {
+            content = Files.readAllBytes(TAIL_FILE.toPath());
+        } catch (NoSuchFileException excp) {
+            content = new byte[0];
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        String[] ids = new String[content.length / ID_LENGTH];
+        for (int i = 0; i < ids.length; i += 1) {
+            ids[i] = toHex(Arrays.copyOfRange(content, i * ID_LENGTH, (i + 1) * ID_LENGTH));
+        }
+        tail = Arrays.asList(ids);
+        return tail;
+    }
+
+    private synchronized boolean load() {
+        if (index != null) return true;
+        try (FileChannel channel = FileChannel.open(INDEX_FILE.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] magic = new byte[MAGIC.length];
+            mapped.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC) || mapped.getInt(MAGIC.length) != VERSION) {
+                throw error("Corrupted commit id index, run rebuild-index.");
+            }
+            count = mapped.getInt(MAGIC.length + Integer.BYTES);
+            index = mapped;
+            return true;
+        } catch (NoSuchFileException excp) {
+            return false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** The position of the first id not smaller than ID. */
+    private int lowerBound(byte[] id) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, id) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compare(int entry, byte[] id) {
+        int position = HEADER_LENGTH + entry * ID_LENGTH;
+        for (int i = 0; i < ID_LENGTH; i += 1) {
+            int cmp = Integer.compare(index.get(position + i) & 0xff, id[i] & 0xff);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    private String idAt(int entry) {
+        byte[] id = new byte[ID_LENGTH];
+        index.get(HEADER_LENGTH + entry * ID_LENGTH, id);
+        return toHex(id);
+    }
+}
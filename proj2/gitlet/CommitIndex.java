@@ -0,0 +1,259 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** An append-only index of the headers of all commits, so that history
+ *  commands never read the commit objects and their tracked files.
+ *  <pre>
+ *      commit-index     'GCIX' version, then one fixed-length record per commit:
+ *                       id (20 bytes) parent (20 bytes) second parent (20 bytes)
+ *                       timestamp (8 bytes) message offset (8 bytes) message length (4 bytes)
+ *      commit-messages  the UTF-8 messages back to back
+ *  </pre>
+ *  A missing parent is stored as 20 zero bytes.  A message is appended
+ *  before the record pointing to it, and a partial record left by an
+ *  interrupted append is ignored and overwritten by the next one, so the
+ *  index never points to a message that is not written.
+ */
+public class CommitIndex {
+    private static final byte[] MAGIC = {'G', 'C', 'I', 'X'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + Integer.BYTES;
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+    private static final int RECORD_LENGTH = 3 * ID_LENGTH + 2 * Long.BYTES + Integer.BYTES;
+    private static final byte[] NO_ID = new byte[ID_LENGTH];
+
+    private final File INDEX_FILE;
+    private final File MESSAGE_FILE;
+    /** The records loaded by this process, dropped whenever the index is written. */
+    private Records records;
+
+    public CommitIndex(File indexFile, File messageFile) {
+        INDEX_FILE = indexFile;
+        MESSAGE_FILE = messageFile;
+    }
+
+    /**
+     * @return true if the index exists, repositories created before it have none until it is rebuilt
+     */
+    public boolean exists() {
+        return INDEX_FILE.exists();
+    }
+
+    /**
+     * Append the header of a new commit
+     * @param meta
+     */
+    public synchronized void append(CommitMeta meta) {
+        byte[] message = meta.getMessage().getBytes(StandardCharsets.UTF_8);
+        try (FileChannel messages = FileChannel.open(MESSAGE_FILE.toPath(),
+                     StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+             FileChannel index = FileChannel.open(INDEX_FILE.toPath(), StandardOpenOption.WRITE)) {
+            long offset = messages.size();
+            writeFully(messages, ByteBuffer.wrap(message), offset);
+            messages.force(false);
+
+            ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+            putRecord(record, meta, offset, message.length);
+            long count = (index.size() - HEADER_LENGTH) / RECORD_LENGTH;
+            writeFully(index, record.flip(), HEADER_LENGTH + count * RECORD_LENGTH);
+            records = null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * @return the headers of all indexed commits, in the order they were indexed
+     */
+    public List<CommitMeta> readAll() {
+        Records records = load();
+        List<CommitMeta> metas = new ArrayList<>(records.count);
+        for (int i = 0; i < records.count; i += 1) {
+            metas.add(records.get(i));
+        }
+        return metas;
+    }
+
+    /**
+     * @return the number of indexed commits
+     */
+    public int size() {
+        return load().count;
+    }
+
+    /**
+     * @param record the position of the commit in the index
+     * @return its id
+     */
+    public String getId(int record) {
+        Records records = load();
+        return records.idAt(records.position(record));
+    }
+
+    /**
+     * @param record the position of the commit in the index
+     * @return its message
+     */
+    public String getMessage(int record) {
+        return load().messageAt(record);
+    }
+
+    /**
+     * Find the commits with exactly the given message, comparing the encoded
+     * messages so that no other message is decoded
+     * @param message
+     * @return the ids of the matching commits
+     */
+    public List<String> findByMessage(String message) {
+        byte[] target = message.getBytes(StandardCharsets.UTF_8);
+        Records records = load();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < records.count; i += 1) {
+            int position = records.position(i);
+            long offset = records.index.getLong(position + 3 * ID_LENGTH + Long.BYTES);
+            int length = records.index.getInt(position + 3 * ID_LENGTH + 2 * Long.BYTES);
+            if (length == target.length && records.messageEquals((int) offset, target)) {
+                ids.add(records.idAt(position));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Replace the index with one holding exactly METAS.
+     * The old index is removed first, so an interrupted rebuild leaves no
+     * index rather than one pointing into the wrong messages.
+     * @param metas
+     */
+    public synchronized void rebuild(List<CommitMeta> metas) {
+        File tmpIndex = new File(INDEX_FILE.getPath() + ".tmp");
+        File tmpMessages = new File(MESSAGE_FILE.getPath() + ".tmp");
+        try {
+            try (DataOutputStream index = new DataOutputStream(
+                         new BufferedOutputStream(Files.newOutputStream(tmpIndex.toPath()), BUFFER_SIZE));
+                 BufferedOutputStream messages = new BufferedOutputStream(
+                         Files.newOutputStream(tmpMessages.toPath()), BUFFER_SIZE)) {
+                index.write(MAGIC);
+                index.writeInt(VERSION);
+                ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+                long offset = 0;
+                for (CommitMeta meta : metas) {
+                    byte[] message = meta.getMessage().getBytes(StandardCharsets.UTF_8);
+                    messages.write(message);
+                    putRecord(record.clear(), meta, offset, message.length);
+                    index.write(record.array());
+                    offset += message.length;
+                }
+            }
+            INDEX_FILE.delete();
+            records = null;
+            Files.move(tmpMessages.toPath(), MESSAGE_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpIndex.toPath(), INDEX_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            tmpIndex.delete();
+            tmpMessages.delete();
+        }
+    }
+
+    private static void putRecord(ByteBuffer record, CommitMeta meta, long offset, int length) {
+        record.put(fromHex(meta.getCommitId()));
+        record.put(meta.getParent() == null ? NO_ID : fromHex(meta.getParent()));
+        record.put(meta.getSecondParent() == null ? NO_ID : fromHex(meta.getSecondParent()));
+        record.putLong(meta.getTimestamp());
+        record.putLong(offset);
+        record.putInt(length);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /** Map the index and messages, the index holding only complete records. */
+    private synchronized Records load() {
+        if (records != null) return records;
+        try (FileChannel indexChannel = FileChannel.open(INDEX_FILE.toPath(), StandardOpenOption.READ);
+             FileChannel messageChannel = FileChannel.open(MESSAGE_FILE.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            byte[] magic = new byte[MAGIC.length];
+            index.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC) || index.getInt(MAGIC.length) != VERSION) {
+                throw error("Corrupted commit index, run rebuild-index.");
+            }
+            ByteBuffer messages = messageChannel.map(FileChannel.MapMode.READ_ONLY, 0, messageChannel.size());
+            records = new Records(index, messages);
+            return records;
+        } catch (NoSuchFileException excp) {
+            throw error("No commit index, run rebuild-index.");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** The records of the index together with the messages they point into. */
+    private static class Records {
+        private final ByteBuffer index;
+        private final ByteBuffer messages;
+        private final int count;
+
+        Records(ByteBuffer index, ByteBuffer messages) {
+            this.index = index;
+            this.messages = messages;
+            this.count = (index.capacity() - HEADER_LENGTH) / RECORD_LENGTH;
+        }
+
+        int position(int record) {
+            return HEADER_LENGTH + record * RECORD_LENGTH;
+        }
+
+        String idAt(int position) {
+            byte[] id = new byte[ID_LENGTH];
+            index.get(position, id);
+            return Arrays.equals(id, NO_ID) ? null : toHex(id);
+        }
+
+        String messageAt(int record) {
+            int position = position(record);
+            long offset = index.getLong(position + 3 * ID_LENGTH + Long.BYTES);
+            int length = index.getInt(position + 3 * ID_LENGTH + 2 * Long.BYTES);
+            byte[] message = new byte[length];
+            messages.get((int) offset, message);
+            return new String(message, StandardCharsets.UTF_8);
+        }
+
+        boolean messageEquals(int offset, byte[] target) {
+            return messages.slice(offset, target.length).equals(ByteBuffer.wrap(target));
+        }
+
+        CommitMeta get(int record) {
+            int position = position(record);
+            return new CommitMeta(
+                    idAt(position),
+                    idAt(position + ID_LENGTH),
+                    idAt(position + 2 * ID_LENGTH),
+                    index.getLong(position + 3 * ID_LENGTH),
+                    messageAt(record));
+        }
+    }
+}
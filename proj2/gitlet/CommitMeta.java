@@ -0,0 +1,63 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/** The header of a commit: everything but its tracked files.
+ *  Commands printing history only need the header, which the commit
+ *  index keeps without the map of tracked files.
+ */
+public class CommitMeta {
+    private final String commitId;
+    private final String parent;
+    private final String secondParent;
+    private final long timestamp;
+    private final String message;
+
+    public CommitMeta(String commitId, String parent, String secondParent, long timestamp, String message) {
+        this.commitId = commitId;
+        this.parent = parent;
+        this.secondParent = secondParent;
+        this.timestamp = timestamp;
+        this.message = message;
+    }
+
+    public String getCommitId() {
+        return commitId;
+    }
+
+    public String getParent() {
+        return parent;
+    }
+
+    public String getSecondParent() {
+        return secondParent;
+    }
+
+    /** The commit time in milliseconds since the epoch. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String log() {
+        return log(getCommitId());
+    }
+
+    /**
+     * @param shownId the id to print, the full id or an abbreviation of it
+     * @return
+     */
+    public String log(String shownId) {
+        StringWriter logWriter = new StringWriter();
+        try {
+            new LogFormatter().write(logWriter, this, shownId);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return logWriter.toString();
+    }
+}
@@ -1,48 +1,394 @@
 package gitlet;
 
-import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static gitlet.Utils.*;
 
 public class CommitService {
-    private final File COMMIT_DIR;
+    /** Commits outside the commit graph a walk may load before the graph is rewritten. */
+    private static final int GRAPH_REFRESH_THRESHOLD = 64;
+    /** Paint flags of the split point walk. */
+    private static final int FROM_FIRST = 1;
+    private static final int FROM_SECOND = 2;
+    private static final int STALE = 4;
+    /** Number of commits kept in memory by one command. */
+    private static final int COMMIT_CACHE_SIZE = 4096;
 
-    public CommitService(File commitDir) {
-        COMMIT_DIR = commitDir;
+    private final ObjectStore commitStore;
+    private final CommitIndex commitIndex;
+    private final MessageIndex messageIndex;
+    private final CommitGraph commitGraph;
+    private final CommitIdIndex commitIdIndex;
+    private final TreeService treeService;
+    /** The commits read or saved by this process, so that each is decoded once and always the same object. */
+    private final LruCache<Commit> commitCache = new LruCache<>(COMMIT_CACHE_SIZE, commit -> 1);
+
+    public CommitService(ObjectStore commitStore, CommitIndex commitIndex, MessageIndex messageIndex,
+                         CommitGraph commitGraph, CommitIdIndex commitIdIndex, TreeService treeService) {
+        this.commitStore = commitStore;
+        this.messageIndex = messageIndex;
+        this.treeService = treeService;
+        this.commitIndex = commitIndex;
+        this.commitGraph = commitGraph;
+        this.commitIdIndex = commitIdIndex;
     }
 
     /**
-     * Save commit file in commits dir
+     * Save commit file in commits dir and add its header to the commit index
      * @param commit
      */
     public void saveCommit(Commit commit) {
-        File commitFile = join(COMMIT_DIR,commit.getCommitId());
-        writeObject(commitFile,commit);
+        commit.setTreeReader(treeService::getFiles);
+        commitCache.putIfAbsent(commit.getCommitId(), commit);
+        if (commitStore.contains(commit.getCommitId())) return;
+        commitStore.write(commit.getCommitId(), BinaryCodec.encodeCommit(commit));
+        // a repository without index keeps scanning the commits until it is rebuilt
+        if (commitIndex.exists()) {
+            commitIndex.append(commit.getMeta());
+            if (messageIndex.exists()) {
+                messageIndex.update();
+            }
+        }
+        if (commitIdIndex.exists()) {
+            commitIdIndex.add(commit.getCommitId());
+        }
     }
 
+    /**
+     * @param commitSha1
+     * @return the commit, the same object for as long as it stays cached, or null if there is no such commit
+     */
     public Commit getCommitBySha1(String commitSha1) {
         if (commitSha1 == null || commitSha1.isEmpty()) return null;
-        File commitFile = join(COMMIT_DIR,commitSha1);
-        if (!commitFile.exists()) return null;
-        return readObject(commitFile,Commit.class);
+        Commit cached = commitCache.get(commitSha1);
+        if (cached != null) return cached;
+        byte[] commit = commitStore.read(commitSha1);
+        if (commit == null) return null;
+        Commit decoded = BinaryCodec.decodeCommit(commit);
+        decoded.setTreeReader(treeService::getFiles);
+        // another thread may have decoded it meanwhile, keep the first
+        return commitCache.putIfAbsent(commitSha1, decoded);
+    }
+
+    public String getCacheStats() {
+        return commitCache.getStats();
+    }
+
+    /**
+     * Write the tree of COMMIT with CHANGES applied, only the trees on the changed paths are rewritten
+     * @param commit
+     * @param changes the new blob id of each changed file, null for a removed file
+     * @return the id of the new tree
+     */
+    public String updateTree(Commit commit, Map<String, String> changes) {
+        if (commit.getTree() != null) {
+            return treeService.update(commit.getTree(), changes);
+        }
+        // a commit written before trees is turned into a tree whole
+        Map<String, String> files = new HashMap<>(commit.getTrackedBlobs());
+        files.putAll(changes);
+        return treeService.update(null, files);
+    }
+
+    /**
+     * @param commit
+     * @param fileName
+     * @return the blob id of the file in the commit, read without loading the other files
+     */
+    public String getBlobId(Commit commit, String fileName) {
+        if (commit.getTree() != null) {
+            return treeService.findFile(commit.getTree(), fileName);
+        }
+        return commit.getTrackedBlobs().get(fileName);
+    }
+
+    /**
+     * @param first
+     * @param second
+     * @return the sorted names of the files added, removed or changed from FIRST to SECOND
+     */
+    public List<String> diff(Commit first, Commit second) {
+        if (first.getTree() != null && second.getTree() != null) {
+            return treeService.diff(first.getTree(), second.getTree());
+        }
+        Set<String> fileNames = new HashSet<>(first.getTrackedBlobs().keySet());
+        fileNames.addAll(second.getTrackedBlobs().keySet());
+        return fileNames.stream()
+                .filter(fileName -> !Objects.equals(first.getTrackedBlobs().get(fileName),
+                        second.getTrackedBlobs().get(fileName)))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Read the header of a commit, without decoding its tracked files
+     * @param commitSha1
+     * @return the header, or null if there is no such commit
+     */
+    public CommitMeta getCommitMetaBySha1(String commitSha1) {
+        if (commitSha1 == null || commitSha1.isEmpty()) return null;
+        Commit cached = commitCache.get(commitSha1);
+        if (cached != null) return cached.getMeta();
+        byte[] commit = commitStore.read(commitSha1);
+        if (commit == null) return null;
+        return BinaryCodec.decodeCommitMeta(commit);
+    }
+
+    /**
+     * Walk the first parents of a commit, reading each header only when the walk reaches it
+     * @param commitId
+     * @return the headers from the commit back to the initial commit
+     */
+    public Iterator<CommitMeta> history(String commitId) {
+        return new Iterator<>() {
+            private String nextId = commitId;
+            private CommitMeta next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && nextId != null) {
+                    next = getCommitMetaBySha1(nextId);
+                    nextId = null;
+                }
+                return next != null;
+            }
+
+            @Override
+            public CommitMeta next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                CommitMeta current = next;
+                next = null;
+                nextId = current.getParent();
+                return current;
+            }
+        };
     }
 
     public List<Commit> getAllCommits() {
-        List<String> commits = Objects.requireNonNull(plainFilenamesIn(COMMIT_DIR));
+        List<String> commits = commitStore.ids();
         return commits
                 .stream()
                 .map(this::getCommitBySha1)
                 .collect(Collectors.toList());
     }
 
-    public List<Commit> getAllCommitsByMessage(String commitMessage) {
-        return getAllCommits()
+    /**
+     * @return the headers of all commits ordered by id, read from the commit index when there is one
+     */
+    public List<CommitMeta> getAllCommitMetas() {
+        if (!commitIndex.exists()) {
+            return getAllCommits()
+                    .stream()
+                    .map(Commit::getMeta)
+                    .collect(Collectors.toList());
+        }
+        List<CommitMeta> metas = commitIndex.readAll();
+        metas.sort(Comparator.comparing(CommitMeta::getCommitId));
+        return metas;
+    }
+
+    /**
+     * @param commitMessage
+     * @return the ids of the commits with exactly that message, ordered by id
+     */
+    public List<String> getCommitIdsByMessage(String commitMessage) {
+        return getCommitIdsByMessage(commitMessage, MessageIndex.Mode.EXACT);
+    }
+
+    /**
+     * Search the commit messages, with the message index when there is one
+     * @param query
+     * @param mode
+     * @return the ids of the commits whose message matches QUERY, ordered by id
+     */
+    public List<String> getCommitIdsByMessage(String query, MessageIndex.Mode mode) {
+        if (!commitIndex.exists()) {
+            Predicate<String> matcher = MessageIndex.matcher(query, mode);
+            return getAllCommits()
+                    .stream()
+                    .filter(commit -> matcher.test(commit.getMessage()))
+                    .map(Commit::getCommitId)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        List<String> ids = messageIndex.exists() || mode != MessageIndex.Mode.EXACT
+                ? messageIndex.find(query, mode)
+                : commitIndex.findByMessage(query);
+        ids.sort(null);
+        return ids;
+    }
+
+    /**
+     * Rebuild the commit index, the message index, the commit graph and the commit id index
+     * from the commits in the store
+     */
+    public void rebuildIndex() {
+        List<String> ids = commitStore.ids();
+        List<CommitMeta> metas = ids
+                .stream()
+                .map(this::getCommitMetaBySha1)
+                .collect(Collectors.toList());
+        commitIndex.rebuild(metas);
+        messageIndex.rebuild();
+        commitGraph.write(metas);
+        commitIdIndex.rebuild(ids);
+    }
+
+    /**
+     * @param prefix a lower-case hexadecimal prefix
+     * @param limit
+     * @return the sorted ids of the commits starting with prefix, at most limit of them
+     */
+    public List<String> getCommitIdsByPrefix(String prefix, int limit) {
+        if (commitIdIndex.exists()) {
+            return commitIdIndex.findByPrefix(prefix, limit);
+        }
+        return commitStore.ids()
                 .stream()
-                .filter(commit -> commit.getMessage().equals(commitMessage))
+                .filter(id -> id.startsWith(prefix))
+                .limit(limit)
                 .collect(Collectors.toList());
     }
+
+    /**
+     * @param commitId
+     * @param minLength
+     * @return the shortest prefix of commitId, at least minLength long, that no other commit starts with
+     */
+    public String abbreviate(String commitId, int minLength) {
+        for (int length = minLength; length < commitId.length(); length += 1) {
+            if (getCommitIdsByPrefix(commitId.substring(0, length), 2).size() <= 1) {
+                return commitId.substring(0, length);
+            }
+        }
+        return commitId;
+    }
+
+    /**
+     * Find the split point of two commits: of their latest common ancestors,
+     * the one with the latest timestamp.
+     * Both commits are walked together from the highest generation down, each
+     * commit painted with the sides it is reachable from.  A commit painted
+     * from both sides is a common ancestor and its own ancestors are marked
+     * stale; since a commit is only reached after all its descendants, the
+     * walk stops as soon as nothing left to walk can be a better candidate.
+     * @param firstId
+     * @param secondId
+     * @return the id of the split point, or null if the commits share no history
+     */
+    public String getSplitPoint(String firstId, String secondId) {
+        if (firstId.equals(secondId)) return firstId;
+        Map<String, CommitGraph.Node> nodes = new HashMap<>();
+        Map<String, Integer> paint = new HashMap<>();
+        Set<String> queued = new HashSet<>();
+        PriorityQueue<CommitGraph.Node> queue = new PriorityQueue<>(
+                Comparator.comparingInt(CommitGraph.Node::getGeneration)
+                        .thenComparingLong(CommitGraph.Node::getTimestamp)
+                        .reversed());
+        paint.put(firstId, FROM_FIRST);
+        paint.put(secondId, FROM_SECOND);
+        queue.add(getNode(firstId, nodes));
+        queue.add(getNode(secondId, nodes));
+        queued.add(firstId);
+        queued.add(secondId);
+        int nonStale = 2;
+
+        List<CommitGraph.Node> candidates = new ArrayList<>();
+        while (nonStale > 0) {
+            CommitGraph.Node node = queue.poll();
+            queued.remove(node.getCommitId());
+            int flags = paint.get(node.getCommitId());
+            if ((flags & STALE) == 0) {
+                nonStale -= 1;
+                if ((flags & (FROM_FIRST | FROM_SECOND)) == (FROM_FIRST | FROM_SECOND)) {
+                    candidates.add(node);
+                    flags |= STALE;
+                }
+            }
+            for (String parentId : new String[] {node.getParent(), node.getSecondParent()}) {
+                if (parentId == null) continue;
+                int parentFlags = paint.getOrDefault(parentId, 0);
+                int newFlags = parentFlags | flags;
+                if (newFlags == parentFlags) continue;
+                paint.put(parentId, newFlags);
+                if (queued.add(parentId)) {
+                    queue.add(getNode(parentId, nodes));
+                    if ((newFlags & STALE) == 0) nonStale += 1;
+                } else if ((parentFlags & STALE) == 0 && (newFlags & STALE) != 0) {
+                    nonStale -= 1;
+                }
+            }
+        }
+
+        long outsideGraph = nodes.values().stream().filter(node -> commitGraph.find(node.getCommitId()) == null).count();
+        if (outsideGraph > GRAPH_REFRESH_THRESHOLD) {
+            commitGraph.write(getAllCommitMetas());
+        }
+        return candidates.stream()
+                .max(Comparator.comparingLong(CommitGraph.Node::getTimestamp))
+                .map(CommitGraph.Node::getCommitId)
+                .orElse(null);
+    }
+
+    /**
+     * The graph node of a commit, from the commit graph, or for commits newer
+     * than the graph from the commit and the nodes of its parents
+     * @param commitId
+     * @param nodes the nodes already found
+     * @return
+     */
+    private CommitGraph.Node getNode(String commitId, Map<String, CommitGraph.Node> nodes) {
+        Map<String, CommitMeta> metas = new HashMap<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(commitId);
+        while (!pending.isEmpty()) {
+            String id = pending.peek();
+            if (nodes.containsKey(id)) {
+                pending.pop();
+                continue;
+            }
+            CommitGraph.Node node = commitGraph.find(id);
+            if (node != null) {
+                nodes.put(id, node);
+                pending.pop();
+                continue;
+            }
+            CommitMeta meta = metas.computeIfAbsent(id, this::getCommitMetaBySha1);
+            if (meta == null) {
+                throw error("No commit with that id exists.");
+            }
+            if (meta.getParent() != null && !nodes.containsKey(meta.getParent())) {
+                pending.push(meta.getParent());
+            } else if (meta.getSecondParent() != null && !nodes.containsKey(meta.getSecondParent())) {
+                pending.push(meta.getSecondParent());
+            } else {
+                int generation = 1 + Math.max(generationOf(meta.getParent(), nodes),
+                        generationOf(meta.getSecondParent(), nodes));
+                nodes.put(id, new CommitGraph.Node(id, meta.getParent(), meta.getSecondParent(),
+                        generation, meta.getTimestamp()));
+                pending.pop();
+            }
+        }
+        return nodes.get(commitId);
+    }
+
+    private static int generationOf(String commitId, Map<String, CommitGraph.Node> nodes) {
+        return commitId == null ? 0 : nodes.get(commitId).getGeneration();
+    }
 }
@@ -0,0 +1,175 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/** Delta encoding of a blob against a base blob.
+ *  A delta is a list of instructions rebuilding the target from the base:
+ *  <pre>
+ *      base id       20 bytes
+ *      depth         1 byte   length of the delta chain ending in this delta
+ *      length        varint   length of the target
+ *      instructions  COPY offset length   copy bytes of the base
+ *                    INSERT length bytes  insert literal bytes
+ *  </pre>
+ *  Matches are found by indexing the base in blocks of BLOCK bytes and
+ *  sliding a rolling hash over the target, extending every verified block
+ *  match in both directions.
+ */
+class Delta {
+    private static final int BLOCK = 16;
+    private static final int PRIME = 31;
+    private static final byte COPY = 0;
+    private static final byte INSERT = 1;
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /** The number of leading bytes of a delta holding its base id and depth. */
+    static final int HEADER_LENGTH = ID_LENGTH + 1;
+
+    /** PRIME raised to BLOCK - 1, to roll the oldest byte out of the hash. */
+    private static final int OUT_FACTOR = power(PRIME, BLOCK - 1);
+
+    /** Return the delta rebuilding TARGET from BASE, the blob BASEID, as the
+     *  DEPTH-th delta of its chain. */
+    static byte[] encode(String baseId, int depth, byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 64);
+        out.writeBytes(fromHex(baseId));
+        out.write(depth);
+        writeVarint(out, target.length);
+
+        int[] table = index(base);
+        int mask = table.length - 1;
+        int literalStart = 0;
+        int i = 0;
+        int hash = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (i + BLOCK <= target.length) {
+            int candidate = table[hash & mask] - 1;
+            if (candidate >= 0 && Arrays.equals(base, candidate, candidate + BLOCK, target, i, i + BLOCK)) {
+                int start = i;
+                int baseStart = candidate;
+                while (start > literalStart && baseStart > 0 && target[start - 1] == base[baseStart - 1]) {
+                    start -= 1;
+                    baseStart -= 1;
+                }
+                int end = i + BLOCK;
+                int baseEnd = candidate + BLOCK;
+                while (end < target.length && baseEnd < base.length && target[end] == base[baseEnd]) {
+                    end += 1;
+                    baseEnd += 1;
+                }
+                writeInsert(out, target, literalStart, start);
+                out.write(COPY);
+                writeVarint(out, baseStart);
+                writeVarint(out, end - start);
+                i = end;
+                literalStart = end;
+                if (i + BLOCK <= target.length) {
+                    hash = hash(target, i);
+                }
+            } else {
+                if (i + BLOCK < target.length) {
+                    hash = (hash - target[i] * OUT_FACTOR) * PRIME + target[i + BLOCK];
+                }
+                i += 1;
+            }
+        }
+        writeInsert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+
+    /** Return the target rebuilt by applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] position = {HEADER_LENGTH};
+        byte[] target = new byte[readVarint(delta, position)];
+        int written = 0;
+        while (position[0] < delta.length) {
+            byte op = delta[position[0]++];
+            if (op == COPY) {
+                int offset = readVarint(delta, position);
+                int length = readVarint(delta, position);
+                System.arraycopy(base, offset, target, written, length);
+                written += length;
+            } else if (op == INSERT) {
+                int length = readVarint(delta, position);
+                System.arraycopy(delta, position[0], target, written, length);
+                position[0] += length;
+                written += length;
+            } else {
+                throw error("Corrupted delta.");
+            }
+        }
+        if (written != target.length) {
+            throw error("Corrupted delta.");
+        }
+        return target;
+    }
+
+    /** Return the id of the base blob of DELTA. */
+    static String baseOf(byte[] delta) {
+        return toHex(Arrays.copyOf(delta, ID_LENGTH));
+    }
+
+    /** Return the depth of DELTA in its delta chain, 1 for a delta against a
+     *  full blob. */
+    static int depthOf(byte[] delta) {
+        return delta[ID_LENGTH] & 0xff;
+    }
+
+    /** Hash table from block hash to the position of the block in BASE plus
+     *  one, zero marking an empty slot. */
+    private static int[] index(byte[] base) {
+        int blocks = base.length / BLOCK;
+        int[] table = new int[Integer.highestOneBit(Math.max(blocks, 1) * 2 - 1) << 1];
+        int mask = table.length - 1;
+        for (int p = (blocks - 1) * BLOCK; p >= 0; p -= BLOCK) {
+            table[hash(base, p) & mask] = p + 1;
+        }
+        return table;
+    }
+
+    private static int hash(byte[] data, int start) {
+        int hash = 0;
+        for (int i = start; i < start + BLOCK; i += 1) {
+            hash = hash * PRIME + data[i];
+        }
+        return hash;
+    }
+
+    private static int power(int base, int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i += 1) {
+            result *= base;
+        }
+        return result;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        if (from < to) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(data, from, to - from);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[position[0]++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
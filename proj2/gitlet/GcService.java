@@ -0,0 +1,212 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static gitlet.Utils.*;
+
+/** Removes the commits, trees and blobs no branch can reach any more.
+ *  Marking walks the history of every root in parallel, sharing the set of
+ *  marked commits so that no commit is walked twice; the tree of a marked
+ *  commit is walked down to its blobs, skipping the subtrees already marked
+ *  since commits share most of their trees, and every blob is marked
+ *  together with the objects it is rebuilt from, its delta base or its
+ *  chunks.  Unmarked objects younger than the grace period are kept, with
+ *  everything they reference, since they may belong to a commit still
+ *  being written.
+ */
+public class GcService {
+    /** Number of loose objects deleted by one task of the sweep. */
+    private static final int SWEEP_BATCH = 256;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final CommitService commitService;
+    private final BlobService blobService;
+    private final TreeService treeService;
+    private final ObjectStore commitStore;
+    private final ObjectStore blobStore;
+    private final ObjectStore treeStore;
+    private final PackStore packStore;
+
+    public GcService(CommitService commitService, BlobService blobService, TreeService treeService,
+                     ObjectStore commitStore, ObjectStore blobStore, ObjectStore treeStore, PackStore packStore) {
+        this.commitService = commitService;
+        this.blobService = blobService;
+        this.treeService = treeService;
+        this.commitStore = commitStore;
+        this.blobStore = blobStore;
+        this.treeStore = treeStore;
+        this.packStore = packStore;
+    }
+
+    /**
+     * Remove the objects unreachable from ROOTS and older than the grace period
+     * @param roots the commit ids every reachable object is found from
+     * @param graceMillis unreachable objects modified within this many milliseconds are kept
+     * @param dryRun only print the objects that would be removed
+     */
+    public void collect(List<String> roots, long graceMillis, boolean dryRun) {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            Set<String> commits = ConcurrentHashMap.newKeySet();
+            Set<String> trees = ConcurrentHashMap.newKeySet();
+            Set<String> blobs = ConcurrentHashMap.newKeySet();
+            List<Future<?>> tasks = new ArrayList<>();
+            for (String root : roots) {
+                tasks.add(pool.submit(() -> mark(root, commits, trees, blobs)));
+            }
+            await(tasks);
+
+            // objects kept for the grace period keep the objects they need as well
+            long cutoff = System.currentTimeMillis() - graceMillis;
+            tasks.clear();
+            for (String commitId : unmarked(commitStore, commits)) {
+                if (commitStore.lastModified(commitId) >= cutoff) {
+                    tasks.add(pool.submit(() -> mark(commitId, commits, trees, blobs)));
+                }
+            }
+            await(tasks);
+            for (String treeId : unmarked(treeStore, trees)) {
+                if (treeStore.lastModified(treeId) >= cutoff) {
+                    markTree(treeId, trees, blobs);
+                }
+            }
+            for (String blobId : unmarked(blobStore, blobs)) {
+                if (blobStore.lastModified(blobId) >= cutoff) {
+                    markBlob(blobId, blobs);
+                }
+            }
+
+            List<String> deadCommits = unmarked(commitStore, commits);
+            List<String> deadTrees = unmarked(treeStore, trees);
+            List<String> deadBlobs = unmarked(blobStore, blobs);
+            if (dryRun) {
+                deadCommits.forEach(id -> System.out.println("Would remove commit " + id));
+                deadTrees.forEach(id -> System.out.println("Would remove tree " + id));
+                deadBlobs.forEach(id -> System.out.println("Would remove blob " + id));
+                System.out.printf("Would remove %d commits, %d trees and %d blobs.%n",
+                        deadCommits.size(), deadTrees.size(), deadBlobs.size());
+                return;
+            }
+
+            Set<String> dead = ConcurrentHashMap.newKeySet();
+            dead.addAll(deadCommits);
+            dead.addAll(deadTrees);
+            dead.addAll(deadBlobs);
+            if (dead.stream().anyMatch(this::isPacked)) {
+                // a pack is rewritten with the objects it keeps, which also sweeps the loose ones
+                packStore.repack(List.of(commitStore, treeStore, blobStore), (store, id) -> !dead.contains(id));
+            } else {
+                tasks.clear();
+                tasks.addAll(sweep(pool, commitStore, deadCommits));
+                tasks.addAll(sweep(pool, treeStore, deadTrees));
+                tasks.addAll(sweep(pool, blobStore, deadBlobs));
+                await(tasks);
+            }
+            commitStore.rebuildFilter();
+            treeStore.rebuildFilter();
+            blobStore.rebuildFilter();
+            System.out.printf("Removed %d commits, %d trees and %d blobs.%n",
+                    deadCommits.size(), deadTrees.size(), deadBlobs.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Mark every commit reachable from ROOT through first and second parents,
+     * and the trees and blobs they use, stopping at commits already marked
+     * @param root
+     * @param commits
+     * @param trees
+     * @param blobs
+     */
+    private void mark(String root, Set<String> commits, Set<String> trees, Set<String> blobs) {
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            String commitId = pending.pop();
+            if (!commits.add(commitId)) continue;
+            Commit commit = commitService.getCommitBySha1(commitId);
+            if (commit == null) continue;
+            if (commit.getTree() != null) {
+                markTree(commit.getTree(), trees, blobs);
+            } else {
+                commit.getTrackedBlobs().values().forEach(blobId -> markBlob(blobId, blobs));
+            }
+            if (commit.getParent() != null) pending.push(commit.getParent());
+            if (commit.getSecondParent() != null) pending.push(commit.getSecondParent());
+        }
+    }
+
+    /** Mark the tree TREEID with its subtrees, shards and blobs, skipping the trees already marked. */
+    private void markTree(String treeId, Set<String> trees, Set<String> blobs) {
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(treeId);
+        while (!pending.isEmpty()) {
+            String id = pending.pop();
+            if (!trees.add(id) || !treeStore.contains(id)) continue;
+            for (Tree.Entry entry : treeService.getTree(id).getEntries().values()) {
+                if (entry.getKind() == Tree.FILE) {
+                    markBlob(entry.getId(), blobs);
+                } else {
+                    pending.push(entry.getId());
+                }
+            }
+        }
+    }
+
+    /** Mark the blob BLOBID and the objects it is rebuilt from. */
+    private void markBlob(String blobId, Set<String> blobs) {
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(blobId);
+        while (!pending.isEmpty()) {
+            String id = pending.pop();
+            if (blobs.add(id)) {
+                blobService.getReferences(id).forEach(pending::push);
+            }
+        }
+    }
+
+    private static List<String> unmarked(ObjectStore store, Set<String> marked) {
+        return store.ids().stream()
+                .filter(id -> !marked.contains(id))
+                .collect(Collectors.toList());
+    }
+
+    private boolean isPacked(String id) {
+        return packStore.contains(id, commitStore.getType()) || packStore.contains(id, treeStore.getType())
+                || packStore.contains(id, blobStore.getType());
+    }
+
+    private static List<Future<?>> sweep(ExecutorService pool, ObjectStore store, List<String> ids) {
+        List<Future<?>> batches = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += SWEEP_BATCH) {
+            List<String> batch = ids.subList(i, Math.min(ids.size(), i + SWEEP_BATCH));
+            batches.add(pool.submit(() -> batch.forEach(store::deleteLoose)));
+        }
+        return batches;
+    }
+
+    private static void await(List<Future<?>> tasks) {
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw error("Interrupted while collecting garbage.");
+        } catch (ExecutionException excp) {
+            throw new IllegalArgumentException(excp.getCause().getMessage());
+        }
+    }
+}
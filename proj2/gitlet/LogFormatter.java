@@ -0,0 +1,102 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormatSymbols;
+import java.text.DecimalFormatSymbols;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Formatter;
+import java.util.Locale;
+
+/** Writes the log entries of commits straight to a writer.
+ *  One calendar and the locale's day and month names are reused for every
+ *  entry, so printing a long history builds no Formatter or format string
+ *  per commit.  The date is the one Formatter prints for
+ *  "%ta %tb %td %tT %tY %tz" in the default locale and time zone; a locale
+ *  with digits other than 0-9 is left to Formatter.
+ */
+class LogFormatter {
+    private final Locale locale;
+    private final Calendar calendar;
+    private final String[] weekdays;
+    private final String[] months;
+    private final boolean asciiDigits;
+
+    LogFormatter() {
+        locale = Locale.getDefault(Locale.Category.FORMAT);
+        calendar = Calendar.getInstance(locale);
+        DateFormatSymbols symbols = DateFormatSymbols.getInstance(locale);
+        weekdays = symbols.getShortWeekdays();
+        months = symbols.getShortMonths();
+        asciiDigits = DecimalFormatSymbols.getInstance(locale).getZeroDigit() == '0';
+    }
+
+    /**
+     * Write the log entry of a commit
+     * @param out
+     * @param meta
+     * @param shownId the id to print, the full id or an abbreviation of it
+     */
+    void write(Writer out, CommitMeta meta, String shownId) throws IOException {
+        out.write("===\ncommit ");
+        out.write(shownId);
+        out.write('\n');
+        if (meta.getParent() != null && meta.getSecondParent() != null) {
+            out.write("Merge: ");
+            out.write(meta.getParent(), 0, 7);
+            out.write(' ');
+            out.write(meta.getSecondParent(), 0, 7);
+            out.write('\n');
+        }
+        out.write("Date: ");
+        writeDate(out, meta.getTimestamp());
+        out.write('\n');
+        out.write(meta.getMessage());
+        out.write("\n\n");
+    }
+
+    private void writeDate(Writer out, long timestamp) throws IOException {
+        if (!asciiDigits) {
+            out.write(new Formatter(locale).format("%1$ta %1$tb %1$td %1$tT %1$tY %1$tz", new Date(timestamp)).toString());
+            return;
+        }
+        calendar.setTimeInMillis(timestamp);
+        out.write(weekdays[calendar.get(Calendar.DAY_OF_WEEK)]);
+        out.write(' ');
+        out.write(months[calendar.get(Calendar.MONTH)]);
+        out.write(' ');
+        writeNumber(out, calendar.get(Calendar.DAY_OF_MONTH), 2);
+        out.write(' ');
+        writeNumber(out, calendar.get(Calendar.HOUR_OF_DAY), 2);
+        out.write(':');
+        writeNumber(out, calendar.get(Calendar.MINUTE), 2);
+        out.write(':');
+        writeNumber(out, calendar.get(Calendar.SECOND), 2);
+        out.write(' ');
+        writeNumber(out, calendar.get(Calendar.YEAR), 4);
+        out.write(' ');
+        int offset = calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET);
+        out.write(offset < 0 ? '-' : '+');
+        int minutes = Math.abs(offset) / 60000;
+        writeNumber(out, minutes / 60 * 100 + minutes % 60, 4);
+    }
+
+    /** Write a non-negative number, padded with zeros to at least WIDTH digits. */
+    private static void writeNumber(Writer out, int number, int width) throws IOException {
+        int digits = 1;
+        for (int rest = number / 10; rest > 0; rest /= 10) {
+            digits += 1;
+        }
+        for (int i = digits; i < width; i += 1) {
+            out.write('0');
+        }
+        int divisor = 1;
+        for (int i = 1; i < digits; i += 1) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.write('0' + number / divisor % 10);
+        }
+    }
+}
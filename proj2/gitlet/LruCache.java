@@ -0,0 +1,89 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/** A cache of values by object id bounded by the total weight of its values,
+ *  typically their size in bytes, evicting the least recently used values
+ *  first.  Values heavier than a sixteenth of the capacity are not cached,
+ *  so that one large value cannot flush the whole cache.  All methods are
+ *  synchronized, the cache may be shared between threads.
+ */
+public class LruCache<V> {
+    private final long capacity;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<String, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public LruCache(long capacity, ToLongFunction<V> weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @param key
+     * @return the cached value of key, or null if it is not cached
+     */
+    public synchronized V get(String key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return value;
+    }
+
+    /**
+     * @param weight
+     * @return true if a value of the given weight would be cached
+     */
+    public boolean accepts(long weight) {
+        return weight <= capacity / 16;
+    }
+
+    /**
+     * Cache value under key, evicting the least recently used values to make room
+     * @param key
+     * @param value
+     */
+    public synchronized void put(String key, V value) {
+        long valueWeight = weigher.applyAsLong(value);
+        if (!accepts(valueWeight)) return;
+        V previous = entries.put(key, value);
+        if (previous != null) {
+            weight -= weigher.applyAsLong(previous);
+        }
+        weight += valueWeight;
+        Iterator<Map.Entry<String, V>> eldest = entries.entrySet().iterator();
+        while (weight > capacity && eldest.hasNext()) {
+            weight -= weigher.applyAsLong(eldest.next().getValue());
+            eldest.remove();
+            evictions += 1;
+        }
+    }
+
+    /**
+     * Cache value under key unless a value is already cached there
+     * @param key
+     * @param value
+     * @return the value cached under key, value itself if there was none
+     */
+    public synchronized V putIfAbsent(String key, V value) {
+        V cached = entries.get(key);
+        if (cached != null) return cached;
+        put(key, value);
+        return value;
+    }
+
+    public synchronized String getStats() {
+        long lookups = hits + misses;
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d of %d used",
+                hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, weight, capacity);
+    }
+}
@@ -1,5 +1,10 @@
 package gitlet;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+
 import static gitlet.Utils.checkNumArgs;
 import static gitlet.Utils.systemExit;
 
@@ -19,6 +24,10 @@ public class Main {
         }
 
         Repository repo = new Repository();
+        if (Boolean.getBoolean("gitlet.stats")) {
+            // commands may end with System.exit, so print the statistics on shutdown
+            Runtime.getRuntime().addShutdownHook(new Thread(repo::printStats));
+        }
         String firstArg = args[0];
         try {
             switch(firstArg) {
@@ -38,14 +47,17 @@ public class Main {
                     repo.rm(args[1]);
                     break;
                 case "log":
-                    checkNumArgs(args,0);
-                    repo.log();
+                    log(repo, args);
                     break;
                 case "global-log":
                     checkNumArgs(args,0);
                     repo.globalLog();
                     break;
                 case "find":
+                    if (args.length == 3 && args[1].startsWith("--")) {
+                        repo.find(args[2], findMode(args[1]));
+                        break;
+                    }
                     checkNumArgs(args,1);
                     repo.find(args[1]);
                     break;
@@ -92,12 +104,101 @@ public class Main {
                     checkNumArgs(args,1);
                     repo.merge(args[1]);
                     break;
+                case "repack":
+                    checkNumArgs(args,0);
+                    repo.repack();
+                    break;
+                case "gc":
+                    gc(repo, args);
+                    break;
+                case "rebuild-index":
+                    checkNumArgs(args,0);
+                    repo.rebuildIndex();
+                    break;
+                case "migrate-objects":
+                    checkNumArgs(args,0);
+                    repo.migrateObjects();
+                    break;
+                case "monitor":
+                    checkNumArgs(args,0);
+                    repo.monitor();
+                    break;
                 default:
                     systemExit("No command with that name exists.");
             }
+        } catch (GitletException ex) {
+            systemExit(ex.getMessage());
         } catch (Exception ex) {
             ex.printStackTrace();
             systemExit(ex.getMessage());
         }
     }
+
+    /** The search mode of find --word, --prefix or --substring. */
+    private static MessageIndex.Mode findMode(String option) {
+        switch (option) {
+            case "--word":
+                return MessageIndex.Mode.WORD;
+            case "--prefix":
+                return MessageIndex.Mode.PREFIX;
+            case "--substring":
+                return MessageIndex.Mode.SUBSTRING;
+            default:
+                systemExit("Incorrect operands.");
+                return null;
+        }
+    }
+
+    /** log [--abbrev-commit] [-n count] [--since date], the options in any order.
+     *  The date is yyyy-MM-dd or yyyy-MM-ddTHH:mm[:ss] in the local time zone.
+     */
+    private static void log(Repository repo, String[] args) {
+        boolean abbreviate = false;
+        int limit = Integer.MAX_VALUE;
+        long since = Long.MIN_VALUE;
+        for (int i = 1; i < args.length; i += 1) {
+            if (args[i].equals("--abbrev-commit")) {
+                abbreviate = true;
+            } else if (args[i].equals("-n") && i + 1 < args.length && args[i + 1].matches("\\d{1,9}")) {
+                i += 1;
+                limit = Integer.parseInt(args[i]);
+            } else if (args[i].equals("--since") && i + 1 < args.length) {
+                i += 1;
+                since = parseDate(args[i]);
+            } else {
+                systemExit("Incorrect operands.");
+            }
+        }
+        repo.log(abbreviate, limit, since);
+    }
+
+    /** The time of a date of the log --since option, in milliseconds since the epoch. */
+    private static long parseDate(String date) {
+        try {
+            LocalDateTime time = date.contains("T")
+                    ? LocalDateTime.parse(date)
+                    : LocalDate.parse(date).atStartOfDay();
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException excp) {
+            systemExit("Incorrect operands.");
+            return 0;
+        }
+    }
+
+    /** gc [--dry-run] [--grace seconds], the options in any order. */
+    private static void gc(Repository repo, String[] args) {
+        boolean dryRun = false;
+        long graceSeconds = Repository.GC_GRACE_SECONDS;
+        for (int i = 1; i < args.length; i += 1) {
+            if (args[i].equals("--dry-run")) {
+                dryRun = true;
+            } else if (args[i].equals("--grace") && i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                i += 1;
+                graceSeconds = Long.parseLong(args[i]);
+            } else {
+                systemExit("Incorrect operands.");
+            }
+        }
+        repo.gc(dryRun, graceSeconds);
+    }
 }
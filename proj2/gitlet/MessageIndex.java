@@ -0,0 +1,358 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+/** An inverted index over the commit messages: every word of a message,
+ *  lower-cased, with the positions in the {@link CommitIndex} of the
+ *  commits whose message has it.
+ *  <pre>
+ *      message-index  'GMIX' version records terms postings start (8 bytes)
+ *                     then terms entries sorted by word:
+ *                     word offset (4 bytes) word length (4 bytes)
+ *                     postings offset (8 bytes) postings count (4 bytes)
+ *                     then the UTF-8 words back to back
+ *                     then the postings of each word: positions as varint gaps
+ *  </pre>
+ *  The index covers the first RECORDS commits of the commit index; the
+ *  commits after them are the tail, whose messages are read and matched
+ *  directly.  Once the tail holds TAIL_LIMIT commits it is merged into the
+ *  index, which is rewritten whole and mapped for binary search.
+ */
+public class MessageIndex {
+    /** How a query is matched against a message. */
+    public enum Mode {
+        /** the whole message, as find always did */
+        EXACT,
+        /** every word of the query is a word of the message, ignoring case */
+        WORD,
+        /** as WORD, the last word of the query only starting a word of the message */
+        PREFIX,
+        /** the query appears anywhere in the message */
+        SUBSTRING
+    }
+
+    private static final byte[] MAGIC = {'G', 'M', 'I', 'X'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 3 * Integer.BYTES + Long.BYTES;
+    private static final int TERM_LENGTH = 2 * Integer.BYTES + Long.BYTES + Integer.BYTES;
+    /** Number of commits in the tail after which the tail is merged into the index. */
+    private static final int TAIL_LIMIT = 1024;
+
+    private final File INDEX_FILE;
+    private final CommitIndex commitIndex;
+    private ByteBuffer index;
+    private int records;
+    private int terms;
+    private long postingsStart;
+
+    public MessageIndex(File indexFile, CommitIndex commitIndex) {
+        INDEX_FILE = indexFile;
+        this.commitIndex = commitIndex;
+    }
+
+    public boolean exists() {
+        return INDEX_FILE.exists();
+    }
+
+    /**
+     * Merge the tail into the index once it holds TAIL_LIMIT commits,
+     * called after each commit is appended to the commit index
+     */
+    public synchronized void update() {
+        int count = commitIndex.size();
+        if (count - indexedRecords() < TAIL_LIMIT) return;
+        Map<String, Postings> postings = new TreeMap<>();
+        if (load()) {
+            for (int term = 0; term < terms; term += 1) {
+                Postings positions = new Postings();
+                readPostings(term, positions::add);
+                postings.put(termAt(term), positions);
+            }
+        }
+        addMessages(postings, records, count);
+        write(postings, count);
+    }
+
+    /**
+     * Replace the index with one covering every commit of the commit index
+     */
+    public synchronized void rebuild() {
+        Map<String, Postings> postings = new TreeMap<>();
+        int count = commitIndex.size();
+        addMessages(postings, 0, count);
+        write(postings, count);
+    }
+
+    /**
+     * @param query
+     * @param mode
+     * @return the ids of the commits whose message matches QUERY
+     */
+    public List<String> find(String query, Mode mode) {
+        int count = commitIndex.size();
+        int indexed = Math.min(indexedRecords(), count);
+        Predicate<String> matcher = matcher(query, mode);
+        List<String> ids = new ArrayList<>();
+
+        BitSet candidates = candidates(query, mode, indexed);
+        // words and prefixes are answered by the index alone, the rest is checked on the message
+        boolean verify = mode == Mode.EXACT || mode == Mode.SUBSTRING;
+        for (int record = candidates.nextSetBit(0); record >= 0; record = candidates.nextSetBit(record + 1)) {
+            if (!verify || matcher.test(commitIndex.getMessage(record))) {
+                ids.add(commitIndex.getId(record));
+            }
+        }
+        for (int record = indexed; record < count; record += 1) {
+            if (matcher.test(commitIndex.getMessage(record))) {
+                ids.add(commitIndex.getId(record));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param query
+     * @param mode
+     * @return a test telling whether a message matches QUERY, for messages not in any index
+     */
+    public static Predicate<String> matcher(String query, Mode mode) {
+        switch (mode) {
+            case WORD: {
+                List<String> words = tokenize(query);
+                return message -> tokenize(message).containsAll(words);
+            }
+            case PREFIX: {
+                List<String> words = tokenize(query);
+                if (words.isEmpty()) return message -> true;
+                String last = words.remove(words.size() - 1);
+                return message -> {
+                    List<String> messageWords = tokenize(message);
+                    return messageWords.containsAll(words)
+                            && messageWords.stream().anyMatch(word -> word.startsWith(last));
+                };
+            }
+            case SUBSTRING:
+                return message -> message.contains(query);
+            default:
+                return message -> message.equals(query);
+        }
+    }
+
+    /** The words of TEXT: its runs of letters and digits, lower-cased. */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i += 1) {
+            boolean inWord = i < text.length() && isWordChar(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * The indexed commits that may match QUERY: every commit of the query's
+     * words, intersected; a word the query cuts at its start is looked up as
+     * a part of a word, and one it cuts at its end as the start of a word
+     */
+    private BitSet candidates(String query, Mode mode, int indexed) {
+        BitSet candidates = new BitSet(indexed);
+        candidates.set(0, indexed);
+        if (indexed == 0 || !load()) return candidates;
+        List<String> words = tokenize(query);
+        boolean openStart = mode == Mode.SUBSTRING && !query.isEmpty() && isWordChar(query.charAt(0));
+        boolean openEnd = (mode == Mode.SUBSTRING && !query.isEmpty() && isWordChar(query.charAt(query.length() - 1)))
+                || mode == Mode.PREFIX;
+        for (int i = 0; i < words.size() && !candidates.isEmpty(); i += 1) {
+            String word = words.get(i);
+            BitSet matches = new BitSet(indexed);
+            if (i == 0 && openStart) {
+                for (int term = 0; term < terms; term += 1) {
+                    if (termAt(term).contains(word)) readPostings(term, matches::set);
+                }
+            } else if (i == words.size() - 1 && openEnd) {
+                for (int term = lowerBound(word); term < terms && termAt(term).startsWith(word); term += 1) {
+                    readPostings(term, matches::set);
+                }
+            } else {
+                int term = lowerBound(word);
+                if (term < terms && termAt(term).equals(word)) readPostings(term, matches::set);
+            }
+            candidates.and(matches);
+        }
+        return candidates;
+    }
+
+    private void addMessages(Map<String, Postings> postings, int from, int to) {
+        for (int record = from; record < to; record += 1) {
+            String previous = null;
+            List<String> words = tokenize(commitIndex.getMessage(record));
+            words.sort(null);
+            for (String word : words) {
+                if (word.equals(previous)) continue;
+                postings.computeIfAbsent(word, key -> new Postings()).add(record);
+                previous = word;
+            }
+        }
+    }
+
+    private void write(Map<String, Postings> postings, int count) {
+        ByteArrayOutputStream table = new ByteArrayOutputStream(TERM_LENGTH * postings.size());
+        ByteArrayOutputStream words = new ByteArrayOutputStream();
+        ByteArrayOutputStream positions = new ByteArrayOutputStream();
+        ByteBuffer term = ByteBuffer.allocate(TERM_LENGTH);
+        for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+            byte[] word = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            term.clear().putInt(words.size()).putInt(word.length)
+                    .putLong(positions.size()).putInt(entry.getValue().size);
+            table.write(term.array(), 0, TERM_LENGTH);
+            words.writeBytes(word);
+            entry.getValue().writeTo(positions);
+        }
+
+        File tmp = new File(INDEX_FILE.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp.toPath()), BUFFER_SIZE))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(count);
+                out.writeInt(postings.size());
+                out.writeLong(HEADER_LENGTH + (long) table.size() + words.size());
+                table.writeTo(out);
+                words.writeTo(out);
+                positions.writeTo(out);
+            }
+            index = null;
+            Files.move(tmp.toPath(), INDEX_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private int indexedRecords() {
+        return load() ? records : 0;
+    }
+
+    private synchronized boolean load() {
+        if (index != null) return true;
+        try (FileChannel channel = FileChannel.open(INDEX_FILE.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] magic = new byte[MAGIC.length];
+            mapped.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC) || mapped.getInt(MAGIC.length) != VERSION) {
+                throw error("Corrupted message index, run rebuild-index.");
+            }
+            records = mapped.getInt(MAGIC.length + Integer.BYTES);
+            terms = mapped.getInt(MAGIC.length + 2 * Integer.BYTES);
+            postingsStart = mapped.getLong(MAGIC.length + 3 * Integer.BYTES);
+            index = mapped;
+            return true;
+        } catch (NoSuchFileException excp) {
+            return false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** The first term not smaller than WORD. */
+    private int lowerBound(String word) {
+        int low = 0;
+        int high = terms;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (termAt(mid).compareTo(word) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private String termAt(int term) {
+        int position = HEADER_LENGTH + term * TERM_LENGTH;
+        int offset = index.getInt(position);
+        byte[] word = new byte[index.getInt(position + Integer.BYTES)];
+        index.get(HEADER_LENGTH + terms * TERM_LENGTH + offset, word);
+        return new String(word, StandardCharsets.UTF_8);
+    }
+
+    private void readPostings(int term, IntConsumer consumer) {
+        int position = HEADER_LENGTH + term * TERM_LENGTH;
+        int offset = (int) (postingsStart + index.getLong(position + 2 * Integer.BYTES));
+        int count = index.getInt(position + 2 * Integer.BYTES + Long.BYTES);
+        int record = 0;
+        for (int i = 0; i < count; i += 1) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = index.get(offset++);
+                gap |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            record += gap;
+            consumer.accept(record);
+        }
+    }
+
+    /** The ascending positions of the commits having one word. */
+    private static class Postings {
+        private int[] positions = new int[4];
+        private int size;
+
+        void add(int record) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = record;
+        }
+
+        void writeTo(ByteArrayOutputStream out) {
+            int previous = 0;
+            for (int i = 0; i < size; i += 1) {
+                int gap = positions[i] - previous;
+                while ((gap & ~0x7f) != 0) {
+                    out.write((gap & 0x7f) | 0x80);
+                    gap >>>= 7;
+                }
+                out.write(gap);
+                previous = positions[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** The objects (blobs, trees or commits) of one type, named by their sha1.
+ *  Objects are looked up in the pack files first and in the directory of
+ *  loose objects second; new objects are always written loose.  A loose
+ *  object is stored in a subdirectory named by the first two hexadecimal
+ *  digits of its id, e.g. ab/cdef..., so that no directory grows too large.
+ *  Loose objects written before this layout sit directly in the directory;
+ *  they are still found there until migrateLayout moves them.
+ *  Every object is written in the compressed object format:
+ *  <pre>
+ *      magic   4 bytes  0x00 'g' 'l' 'o'
+ *      type    1 byte   TYPE_BLOB, TYPE_COMMIT, ...
+ *      length  8 bytes  uncompressed length of the content
+ *      content          deflate stream of the content
+ *  </pre>
+ *  A blob may also be stored with type TYPE_DELTA, its content being a
+ *  {@link Delta} against another blob, or with type TYPE_CHUNKED, its content
+ *  being the list of the chunks it is made of; the length is then the length
+ *  of the blob the object rebuilds.
+ *  Objects written before this format existed are plain files holding the
+ *  raw content; they are recognized by the missing magic and read as they are.
+ *
+ *  Objects are written once: writing an object that is already stored is
+ *  skipped.  A persisted Bloom filter over the ids of the store answers most
+ *  "is it new" questions without touching the file system; a positive answer
+ *  is confirmed against the packs or the loose file, since it may be false.
+ *  Ids are added to the filter's log before their object becomes visible,
+ *  so the filter never misses an object.
+ */
+public class ObjectStore {
+    static final byte TYPE_BLOB = 1;
+    static final byte TYPE_COMMIT = 2;
+    static final byte TYPE_DELTA = 3;
+    static final byte TYPE_CHUNKED = 4;
+    static final byte TYPE_TREE = 5;
+
+    private static final byte[] MAGIC = {0, 'g', 'l', 'o'};
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + Long.BYTES;
+
+    /** Initial capacity of the Bloom filter, it is rebuilt larger when full. */
+    private static final int FILTER_CAPACITY = 1 << 16;
+    /** Number of ids in the filter's log after which the log is folded into the filter. */
+    private static final int FILTER_LOG_LIMIT = 4096;
+
+    private final File OBJECT_DIR;
+    private final byte TYPE;
+    private final PackStore packStore;
+    private final File FILTER_FILE;
+    private final File FILTER_LOG;
+
+    private BloomFilter filter;
+    /** Ids known to be stored, confirmed or written by this process. */
+    private final Set<String> knownIds = ConcurrentHashMap.newKeySet();
+    private final AtomicLong filterNegatives = new AtomicLong();
+    private final AtomicLong knownHits = new AtomicLong();
+    private final AtomicLong confirmedHits = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private final AtomicLong skippedWrites = new AtomicLong();
+
+    public ObjectStore(File objectDir, byte type, PackStore packStore, File filterFile) {
+        OBJECT_DIR = objectDir;
+        TYPE = type;
+        this.packStore = packStore;
+        FILTER_FILE = filterFile;
+        FILTER_LOG = new File(filterFile.getPath() + ".log");
+    }
+
+    public byte getType() {
+        return TYPE;
+    }
+
+    /**
+     * @param id
+     * @return true if the object id is stored, packed or loose
+     */
+    public boolean contains(String id) {
+        if (!isUid(id)) return false;
+        if (knownIds.contains(id)) {
+            knownHits.incrementAndGet();
+            return true;
+        }
+        if (!getFilter().mightContain(id)) {
+            filterNegatives.incrementAndGet();
+            return false;
+        }
+        if (packStore.contains(id, TYPE) || getLooseFile(id) != null) {
+            confirmedHits.incrementAndGet();
+            knownIds.add(id);
+            return true;
+        }
+        falsePositives.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return the counts of existence checks answered by the filter and of writes skipped
+     */
+    public String getStats() {
+        return String.format("%d writes skipped, %d known, %d definitely new, "
+                        + "%d confirmed present, %d filter false positives",
+                skippedWrites.get(), knownHits.get(), filterNegatives.get(),
+                confirmedHits.get(), falsePositives.get());
+    }
+
+    /**
+     * Write CONTENT as the object ID
+     * @param id
+     * @param content
+     */
+    public void write(String id, byte[] content) {
+        write(id, content.length, new ByteArrayInputStream(content));
+    }
+
+    /**
+     * Compress the LENGTH bytes read from CONTENT into the object ID.
+     * The object is written to a temporary file first and then moved in place,
+     * so readers never see a partially written object.
+     * @param id
+     * @param length
+     * @param content
+     */
+    public void write(String id, long length, InputStream content) {
+        if (skipWrite(id)) return;
+        moveInto(writeTemporary(TYPE, length, content, true), id);
+    }
+
+    /**
+     * Write CONTENT, an encoded form of type TYPE_DELTA or TYPE_CHUNKED
+     * of the blob of LENGTH bytes, as the object ID
+     * @param id
+     * @param type
+     * @param length
+     * @param content
+     */
+    public void writeEncoded(String id, byte type, long length, byte[] content) {
+        if (skipWrite(id)) return;
+        moveInto(writeTemporary(type, length, new ByteArrayInputStream(content), false), id);
+    }
+
+    /**
+     * Compress the LENGTH bytes read from CONTENT into a new object named by
+     * the sha1 of the content, hashing and compressing in a single pass.
+     * @param length
+     * @param content
+     * @return the id of the object
+     */
+    public String write(long length, InputStream content) {
+        MessageDigest digest = sha1Digest();
+        File tmp = writeTemporary(TYPE, length, new DigestInputStream(content, digest), true);
+        String id = toHex(digest.digest());
+        if (skipWrite(id)) {
+            tmp.delete();
+        } else {
+            moveInto(tmp, id);
+        }
+        return id;
+    }
+
+    private boolean skipWrite(String id) {
+        if (contains(id)) {
+            skippedWrites.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private File writeTemporary(byte type, long length, InputStream content, boolean checkLength) {
+        File tmp = createTemporary();
+        try {
+            OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp.toPath()), BUFFER_SIZE);
+            try (DeflaterOutputStream deflater = new DeflaterOutputStream(out, new Deflater(), BUFFER_SIZE, false) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    def.end();
+                }
+            }) {
+                DataOutputStream header = new DataOutputStream(out);
+                header.write(MAGIC);
+                header.writeByte(type);
+                header.writeLong(length);
+                long copied = content.transferTo(deflater);
+                if (checkLength && copied != length) {
+                    throw new IllegalArgumentException("object length changed while writing");
+                }
+            }
+            return tmp;
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (RuntimeException excp) {
+            tmp.delete();
+            throw excp;
+        }
+    }
+
+    private File createTemporary() {
+        // a store added after the repository was created gets its directory on first write
+        OBJECT_DIR.mkdir();
+        try {
+            return Files.createTempFile(OBJECT_DIR.toPath(), ".tmp-", "").toFile();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private void moveInto(File tmp, String id) {
+        addToFilter(id);
+        try {
+            File file = getFile(id);
+            file.getParentFile().mkdir();
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Open the object ID for reading, decompressing it on the fly
+     * @param id
+     * @return the stored object, or null if the object does not exist
+     */
+    public StoredObject open(String id) {
+        InputStream frame = openFrame(id);
+        if (frame == null) return null;
+        InputStream in = new BufferedInputStream(frame, BUFFER_SIZE);
+        try {
+            in.mark(HEADER_LENGTH);
+            byte[] magic = in.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) {
+                // loose object written before compression, stored as is
+                in.reset();
+                return new StoredObject(TYPE, getLooseFile(id).length(), in);
+            }
+            DataInputStream header = new DataInputStream(in);
+            byte type = header.readByte();
+            long length = header.readLong();
+            return new StoredObject(type, length, new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end();
+                }
+            });
+        } catch (IOException excp) {
+            closeQuietly(in);
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Read the uncompressed length of the object ID from its header, without decompressing it
+     * @param id
+     * @return the length, or -1 if the object does not exist
+     */
+    public long size(String id) {
+        try (InputStream frame = openFrame(id)) {
+            if (frame == null) return -1;
+            DataInputStream header = new DataInputStream(new BufferedInputStream(frame, HEADER_LENGTH));
+            byte[] magic = header.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) {
+                return getLooseFile(id).length();
+            }
+            header.readByte();
+            return header.readLong();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Read the whole uncompressed content of the object ID
+     * @param id
+     * @return the content, or null if the object does not exist
+     */
+    public byte[] read(String id) {
+        StoredObject object = open(id);
+        if (object == null) return null;
+        try (InputStream in = object.getContent()) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * @return the ids of all objects in the store, packed or loose
+     */
+    public List<String> ids() {
+        Set<String> ids = new TreeSet<>(packStore.ids(TYPE));
+        ids.addAll(looseIds());
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * @return the ids of the objects stored as loose files, in either layout
+     */
+    public List<String> looseIds() {
+        List<String> ids = new ArrayList<>();
+        String[] names = OBJECT_DIR.list();
+        if (names == null) return ids;
+        for (String name : names) {
+            if (isUid(name)) {
+                ids.add(name);
+            } else if (name.length() == 2) {
+                // names are checked rather than stat'ed, listing stays one read per directory
+                String[] fanOut = join(OBJECT_DIR, name).list();
+                if (fanOut == null) continue;
+                for (String rest : fanOut) {
+                    if (isUid(name + rest)) {
+                        ids.add(name + rest);
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Write the object ID to OUT in the compressed object format,
+     * objects written before compression are compressed on the way
+     * @param id
+     * @param out
+     * @return the number of bytes written
+     */
+    public long copyFrame(String id, OutputStream out) {
+        try (InputStream frame = new BufferedInputStream(openFrame(id), BUFFER_SIZE)) {
+            frame.mark(MAGIC.length);
+            byte[] magic = frame.readNBytes(MAGIC.length);
+            frame.reset();
+            if (Arrays.equals(magic, MAGIC)) {
+                return frame.transferTo(out);
+            }
+            File tmp = writeTemporary(TYPE, getLooseFile(id).length(), frame, true);
+            try {
+                return Files.copy(tmp.toPath(), out);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Delete the loose copy of the object ID, once it is packed
+     * @param id
+     */
+    public void deleteLoose(String id) {
+        getFile(id).delete();
+        getFlatFile(id).delete();
+    }
+
+    /**
+     * @param id
+     * @return the time the object ID was last written, loose or in its pack,
+     *         or 0 if it is not stored
+     */
+    public long lastModified(String id) {
+        File file = getLooseFile(id);
+        if (file != null) return file.lastModified();
+        return packStore.lastModified(id, TYPE);
+    }
+
+    /**
+     * Move the loose objects stored directly in the directory into their
+     * fan-out subdirectory, each move is atomic so objects stay readable throughout
+     * @return the number of objects moved
+     */
+    public int migrateLayout() {
+        List<String> flatIds = Objects.requireNonNull(plainFilenamesIn(OBJECT_DIR))
+                .stream()
+                .filter(Utils::isUid)
+                .collect(Collectors.toList());
+        for (String id : flatIds) {
+            File file = getFile(id);
+            file.getParentFile().mkdir();
+            try {
+                Files.move(getFlatFile(id).toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return flatIds.size();
+    }
+
+    /** The stored form of the object ID, from a pack or from its loose file. */
+    private InputStream openFrame(String id) {
+        if (!isUid(id)) return null;
+        InputStream frame = packStore.openFrame(id, TYPE);
+        if (frame != null) return frame;
+        try {
+            return Files.newInputStream(getFile(id).toPath());
+        } catch (NoSuchFileException excp) {
+            // not in the fan-out layout, maybe written before it
+            try {
+                return Files.newInputStream(getFlatFile(id).toPath());
+            } catch (NoSuchFileException flatExcp) {
+                return null;
+            } catch (IOException flatExcp) {
+                throw new IllegalArgumentException(flatExcp.getMessage());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** The Bloom filter of the store, loaded with the ids of its log, or
+     *  built from the listing of the store if it was never saved. */
+    private synchronized BloomFilter getFilter() {
+        if (filter != null) return filter;
+        filter = BloomFilter.load(FILTER_FILE);
+        if (filter == null) {
+            rebuildFilter();
+            return filter;
+        }
+        byte[] log = new byte[0];
+        if (FILTER_LOG.exists()) {
+            log = readContents(FILTER_LOG);
+        }
+        for (int i = 0; i + UID_LENGTH / 2 <= log.length; i += UID_LENGTH / 2) {
+            filter.add(toHex(Arrays.copyOfRange(log, i, i + UID_LENGTH / 2)));
+        }
+        if (filter.isFull()) {
+            rebuildFilter();
+        } else if (log.length / (UID_LENGTH / 2) > FILTER_LOG_LIMIT) {
+            filter.save(FILTER_FILE);
+            FILTER_LOG.delete();
+        }
+        return filter;
+    }
+
+    /**
+     * Rebuild the Bloom filter from the listing of the store,
+     * dropping the ids of the objects removed since it was built
+     */
+    public synchronized void rebuildFilter() {
+        knownIds.clear();
+        List<String> ids = ids();
+        filter = new BloomFilter(Math.max(FILTER_CAPACITY, 2 * ids.size()));
+        ids.forEach(filter::add);
+        filter.save(FILTER_FILE);
+        FILTER_LOG.delete();
+    }
+
+    /** Record ID in the filter and append it to the filter's log. */
+    private synchronized void addToFilter(String id) {
+        getFilter().add(id);
+        try {
+            Files.write(FILTER_LOG.toPath(), fromHex(id), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        knownIds.add(id);
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            if (in != null) in.close();
+        } catch (IOException ignored) {
+            // nothing left to clean up
+        }
+    }
+
+    /** The path of the loose object ID in the fan-out layout. */
+    private File getFile(String id) {
+        return join(OBJECT_DIR, id.substring(0, 2), id.substring(2));
+    }
+
+    /** The path of the loose object ID written before the fan-out layout. */
+    private File getFlatFile(String id) {
+        return join(OBJECT_DIR, id);
+    }
+
+    /** The loose file of the object ID in either layout, or null if there is none. */
+    private File getLooseFile(String id) {
+        File file = getFile(id);
+        if (file.exists()) return file;
+        file = getFlatFile(id);
+        return file.exists() ? file : null;
+    }
+
+    /** The header and the uncompressed content of a stored object. */
+    static class StoredObject {
+        private final byte type;
+        private final long length;
+        private final InputStream content;
+
+        StoredObject(byte type, long length, InputStream content) {
+            this.type = type;
+            this.length = length;
+            this.content = content;
+        }
+
+        byte getType() {
+            return type;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        InputStream getContent() {
+            return content;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.stream.Collectors;
+
+import static gitlet.Utils.*;
+
+/** The pack files of a repository.
+ *  A pack consolidates many objects into one file, each object kept in the
+ *  same compressed frame it has as a loose object:
+ *  <pre>
+ *      pack-[sha1].pack   'GPAK' version, then the object frames back to back
+ *      pack-[sha1].idx    'GIDX' version count, then count entries sorted by id:
+ *                         id (20 bytes) type (4 bytes) offset (8 bytes) length (8 bytes)
+ *  </pre>
+ *  Index files are memory-mapped, so finding an object is a binary search
+ *  over the mapping, and object frames are read from a channel kept open on
+ *  the pack, so no file is opened per object.
+ */
+public class PackStore {
+    private static final byte[] PACK_MAGIC = {'G', 'P', 'A', 'K'};
+    private static final byte[] INDEX_MAGIC = {'G', 'I', 'D', 'X'};
+    private static final int VERSION = 1;
+    private static final int PACK_HEADER_LENGTH = PACK_MAGIC.length + Integer.BYTES;
+    private static final int INDEX_HEADER_LENGTH = INDEX_MAGIC.length + 2 * Integer.BYTES;
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+    private static final int ENTRY_LENGTH = ID_LENGTH + Integer.BYTES + 2 * Long.BYTES;
+
+    private final File PACK_DIR;
+    private List<Pack> packs;
+
+    public PackStore(File packDir) {
+        PACK_DIR = packDir;
+    }
+
+    public boolean contains(String id, byte type) {
+        byte[] rawId = rawId(id);
+        return rawId != null && getPacks().stream().anyMatch(pack -> pack.find(rawId, type) >= 0);
+    }
+
+    /**
+     * Open the compressed frame of the object ID of the given type
+     * @param id
+     * @param type
+     * @return the frame, or null if no pack holds the object
+     */
+    public InputStream openFrame(String id, byte type) {
+        byte[] rawId = rawId(id);
+        if (rawId == null) return null;
+        for (Pack pack : getPacks()) {
+            int entry = pack.find(rawId, type);
+            if (entry >= 0) {
+                return pack.open(entry);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param type
+     * @return the ids of all packed objects of the given type
+     */
+    public List<String> ids(byte type) {
+        List<String> ids = new ArrayList<>();
+        for (Pack pack : getPacks()) {
+            for (int entry = 0; entry < pack.count; entry += 1) {
+                if (pack.typeAt(entry) == type) {
+                    ids.add(toHex(pack.idAt(entry)));
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param id
+     * @param type
+     * @return the time the pack holding the object ID was written, or 0 if no pack holds it
+     */
+    public long lastModified(String id, byte type) {
+        byte[] rawId = rawId(id);
+        if (rawId == null) return 0;
+        for (Pack pack : getPacks()) {
+            if (pack.find(rawId, type) >= 0) {
+                return pack.lastModified;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Consolidate every object of STORES, loose or already packed, into a
+     * single new pack, then remove the old packs and the loose objects.
+     * @param stores
+     */
+    public void repack(List<ObjectStore> stores) {
+        repack(stores, (store, id) -> true);
+    }
+
+    /**
+     * Consolidate the objects of STORES accepted by KEEP, loose or already
+     * packed, into a single new pack, then remove the old packs and the
+     * loose objects, the objects not kept being dropped with them.
+     * @param stores
+     * @param keep
+     */
+    public void repack(List<ObjectStore> stores, BiPredicate<ObjectStore, String> keep) {
+        PACK_DIR.mkdirs();
+        List<List<String>> looseIds = stores.stream()
+                .map(ObjectStore::looseIds)
+                .collect(Collectors.toList());
+        List<Entry> entries = new ArrayList<>();
+        MessageDigest digest = sha1Digest();
+        File tmpPack = createTemporary();
+        File tmpIndex = createTemporary();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmpPack.toPath()), BUFFER_SIZE), digest))) {
+                out.write(PACK_MAGIC);
+                out.writeInt(VERSION);
+                long offset = PACK_HEADER_LENGTH;
+                for (ObjectStore store : stores) {
+                    for (String id : store.ids()) {
+                        if (!keep.test(store, id)) continue;
+                        long length = store.copyFrame(id, out);
+                        entries.add(new Entry(fromHex(id), store.getType(), offset, length));
+                        offset += length;
+                    }
+                }
+            }
+            entries.sort(Entry.ORDER);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmpIndex.toPath()), BUFFER_SIZE))) {
+                out.write(INDEX_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    out.write(entry.id);
+                    out.writeInt(entry.type);
+                    out.writeLong(entry.offset);
+                    out.writeLong(entry.length);
+                }
+            }
+
+            // the index is moved last: a pack only exists once its index does
+            String name = "pack-" + toHex(digest.digest());
+            close();
+            Files.move(tmpPack.toPath(), join(PACK_DIR, name + ".pack").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpIndex.toPath(), join(PACK_DIR, name + ".idx").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (String packName : packNames()) {
+                if (!packName.equals(name)) {
+                    join(PACK_DIR, packName + ".idx").delete();
+                    join(PACK_DIR, packName + ".pack").delete();
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            tmpPack.delete();
+            tmpIndex.delete();
+        }
+        for (int i = 0; i < stores.size(); i += 1) {
+            looseIds.get(i).forEach(stores.get(i)::deleteLoose);
+        }
+    }
+
+    /**
+     * Release the open packs, they are reopened on the next lookup
+     */
+    public synchronized void close() {
+        if (packs != null) {
+            packs.forEach(Pack::close);
+            packs = null;
+        }
+    }
+
+    private synchronized List<Pack> getPacks() {
+        if (packs == null) {
+            packs = packNames().stream()
+                    .map(name -> new Pack(join(PACK_DIR, name + ".pack"), join(PACK_DIR, name + ".idx")))
+                    .collect(Collectors.toList());
+        }
+        return packs;
+    }
+
+    private List<String> packNames() {
+        List<String> files = plainFilenamesIn(PACK_DIR);
+        if (files == null) return List.of();
+        return files.stream()
+                .filter(file -> file.startsWith("pack-") && file.endsWith(".idx"))
+                .map(file -> file.substring(0, file.length() - ".idx".length()))
+                .collect(Collectors.toList());
+    }
+
+    private File createTemporary() {
+        try {
+            return Files.createTempFile(PACK_DIR.toPath(), ".tmp-", "").toFile();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static byte[] rawId(String id) {
+        if (!isUid(id)) {
+            return null;
+        }
+        return fromHex(id);
+    }
+
+    private static int compare(ByteBuffer index, int position, byte[] id) {
+        for (int i = 0; i < ID_LENGTH; i += 1) {
+            int cmp = Integer.compare(index.get(position + i) & 0xff, id[i] & 0xff);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    /** A pack file together with its memory-mapped index. */
+    private static class Pack {
+        private final MappedByteBuffer index;
+        private final FileChannel channel;
+        private final int count;
+        private final long lastModified;
+
+        Pack(File packFile, File indexFile) {
+            try (FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+                byte[] magic = new byte[INDEX_MAGIC.length];
+                index.get(0, magic);
+                if (!Arrays.equals(magic, INDEX_MAGIC) || index.getInt(INDEX_MAGIC.length) != VERSION) {
+                    throw error("Corrupted pack index %s.", indexFile.getName());
+                }
+                count = index.getInt(INDEX_MAGIC.length + Integer.BYTES);
+                channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+                lastModified = packFile.lastModified();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /** Binary search over the sorted entries, returns the entry of ID or -1. */
+        int find(byte[] id, byte type) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int position = entryPosition(mid);
+                int cmp = compare(index, position, id);
+                if (cmp == 0) {
+                    cmp = Integer.compare(index.getInt(position + ID_LENGTH), type);
+                }
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        byte[] idAt(int entry) {
+            byte[] id = new byte[ID_LENGTH];
+            index.get(entryPosition(entry), id);
+            return id;
+        }
+
+        int typeAt(int entry) {
+            return index.getInt(entryPosition(entry) + ID_LENGTH);
+        }
+
+        InputStream open(int entry) {
+            int position = entryPosition(entry) + ID_LENGTH + Integer.BYTES;
+            return new RegionInputStream(channel, index.getLong(position), index.getLong(position + Long.BYTES));
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // the pack is only read, nothing is lost
+            }
+        }
+
+        private static int entryPosition(int entry) {
+            return INDEX_HEADER_LENGTH + entry * ENTRY_LENGTH;
+        }
+    }
+
+    /** Reads a region of a channel with positional reads, so one channel
+     *  serves any number of concurrent readers. */
+    private static class RegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        RegionInputStream(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) return -1;
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n > 0) position += n;
+            return n;
+        }
+    }
+
+    /** An index entry collected while writing a pack. */
+    private static class Entry {
+        static final Comparator<Entry> ORDER = (a, b) -> {
+            int cmp = Arrays.compareUnsigned(a.id, b.id);
+            return cmp != 0 ? cmp : Integer.compare(a.type, b.type);
+        };
+
+        private final byte[] id;
+        private final byte type;
+        private final long offset;
+        private final long length;
+
+        Entry(byte[] id, byte type, long offset, long length) {
+            this.id = id;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
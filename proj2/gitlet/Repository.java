@@ -1,12 +1,23 @@
 package gitlet;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static gitlet.Utils.*;
 
@@ -14,6 +25,19 @@ import static gitlet.Utils.*;
  *  @author Ahmed Mabrouk
  */
 public class Repository {
+    /** Size in bytes of the blob cache, set with -Dgitlet.cacheSize. */
+    private static final long BLOB_CACHE_SIZE = Long.getLong("gitlet.cacheSize", 64L * 1024 * 1024);
+    /** Default grace period of gc in seconds, unreachable objects younger than this are kept. */
+    static final long GC_GRACE_SECONDS = 14 * 24 * 60 * 60;
+    /** Shortest abbreviated commit id accepted. */
+    private static final int MIN_ABBREV_LENGTH = 4;
+    /** Length of the abbreviated commit ids log prints, longer when needed to be unique. */
+    private static final int SHORT_ID_LENGTH = 7;
+    /** Number of files merged at once, more than the processors since merging mostly waits on I/O. */
+    private static final int MERGE_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+    /** Number of files checkout and reset write at once, set with -Dgitlet.checkout.threads; 1 writes them in turn. */
+    private static final int CHECKOUT_THREADS =
+            Integer.getInteger("gitlet.checkout.threads", 2 * Runtime.getRuntime().availableProcessors());
 
     private final File CWD;
     private final File GITLET_DIR;
@@ -23,13 +47,23 @@ public class Repository {
     private final File ADDITION_DIR;
     private final File REMOVAL_DIR;
     private final File BLOB_DIR;
+    private final File TREE_DIR;
+    private final File PACK_DIR;
     private final File HEAD;
 
+    private final PackStore packStore;
+    private final ObjectStore commitStore;
+    private final ObjectStore blobStore;
+    private final ObjectStore treeStore;
+
     private final CommitService commitService;
     private final BranchService branchService;
     private final WorkDirService workDirService;
+    private final WorkDirMonitor monitor;
     private final StageAreaService stageAreaService;
     private final BlobService blobService;
+    private final TreeService treeService;
+    private final GcService gcService;
     private final Head head;
     public Repository() {
         CWD = new File(System.getProperty("user.dir"));
@@ -40,13 +74,33 @@ public class Repository {
         ADDITION_DIR = join(STAGING_AREA_DIR,"addition");
         REMOVAL_DIR = join(STAGING_AREA_DIR,"removal");
         BLOB_DIR = join(GITLET_DIR,"blobs");
+        TREE_DIR = join(GITLET_DIR,"trees");
+        PACK_DIR = join(GITLET_DIR,"packs");
         HEAD = join(GITLET_DIR,"HEAD");
 
-        workDirService = new WorkDirService(CWD);
-        commitService = new CommitService(COMMIT_DIR);
+        packStore = new PackStore(PACK_DIR);
+        commitStore = new ObjectStore(COMMIT_DIR, ObjectStore.TYPE_COMMIT, packStore,
+                join(GITLET_DIR,"commits.bloom"));
+        blobStore = new ObjectStore(BLOB_DIR, ObjectStore.TYPE_BLOB, packStore,
+                join(GITLET_DIR,"blobs.bloom"));
+        treeStore = new ObjectStore(TREE_DIR, ObjectStore.TYPE_TREE, packStore,
+                join(GITLET_DIR,"trees.bloom"));
+
+        monitor = new WorkDirMonitor(CWD, join(GITLET_DIR,"monitor"));
+        workDirService = new WorkDirService(CWD, join(GITLET_DIR,"checkout"),
+                new StatIndex(join(GITLET_DIR,"index"), join(GITLET_DIR,"index.head")), monitor);
+        treeService = new TreeService(treeStore);
+        CommitIndex commitIndex = new CommitIndex(join(GITLET_DIR,"commit-index"), join(GITLET_DIR,"commit-messages"));
+        commitService = new CommitService(commitStore, commitIndex,
+                new MessageIndex(join(GITLET_DIR,"message-index"), commitIndex),
+                new CommitGraph(join(GITLET_DIR,"commit-graph")),
+                new CommitIdIndex(join(GITLET_DIR,"commit-ids"), join(GITLET_DIR,"commit-ids.tail")),
+                treeService);
         branchService = new BranchService(BRANCH_DIR);
         stageAreaService = new StageAreaService(ADDITION_DIR,REMOVAL_DIR);
-        blobService = new BlobService(BLOB_DIR);
+        blobService = new BlobService(blobStore, new LruCache<>(BLOB_CACHE_SIZE, content -> content.length));
+        gcService = new GcService(commitService, blobService, treeService, commitStore, blobStore, treeStore,
+                packStore);
         head = new Head(HEAD);
     }
 
@@ -69,10 +123,14 @@ public class Repository {
         ADDITION_DIR.mkdir();
         REMOVAL_DIR.mkdir();
         BLOB_DIR.mkdir();
+        TREE_DIR.mkdir();
+        PACK_DIR.mkdir();
         HEAD.createNewFile();
+        commitService.rebuildIndex();
 
         // create first commit
-        Commit initCommit = new Commit("initial commit",new Date(0),null,null,null);
+        Commit initCommit = new Commit("initial commit",new Date(0),null,null,
+                treeService.update(null, Map.of()));
         commitService.saveCommit(initCommit);
 
         // create master branch
@@ -94,21 +152,23 @@ public class Repository {
      */
     public void add(String fileName) {
         checkGitletDir();
+        fileName = workDirService.normalize(fileName);
         checkFileExist(fileName);
 
         File curFile = workDirService.getFile(fileName);
         String hashedFile = workDirService.getHashedFile(fileName);
 
         Commit currentCommit = getCurrentCommit();
-        String currentCommitFile = currentCommit.getTrackedBlobs().getOrDefault(fileName,null);
+        String currentCommitFile = commitService.getBlobId(currentCommit,fileName);
         if (currentCommitFile == null || !currentCommitFile.equals(hashedFile)) {
-            stageAreaService.addInAddition(curFile);
+            stageAreaService.addInAddition(curFile,fileName);
         } else {
             stageAreaService.deleteFromAddition(fileName);
         }
 
         // if this file staged for remove before, delete it
         stageAreaService.deleteFromRemoval(fileName);
+        workDirService.saveIndex();
 
     }
 
@@ -120,10 +180,11 @@ public class Repository {
      */
     public void rm(String fileName) {
         checkGitletDir();
+        fileName = workDirService.normalize(fileName);
 //        checkFileExist(fileName);
         File file = stageAreaService.getFileFromAddition(fileName);
         Commit curCommit = getCurrentCommit();
-        String curCommitFile = curCommit.getTrackedBlobs().getOrDefault(fileName,null);
+        String curCommitFile = commitService.getBlobId(curCommit,fileName);
         if (file == null && curCommitFile == null) systemExit("No reason to remove the file.");
 
         if (file != null) {
@@ -132,9 +193,9 @@ public class Repository {
 
         if (curCommitFile != null) {
             // add it in removal and remove it form working dir
-            File blob = blobService.getBlob(curCommitFile);
-            stageAreaService.addInRemoval(readContentsAsString(blob),fileName);
+            stageAreaService.addInRemoval(fileName);
             workDirService.deleteFile(fileName);
+            workDirService.saveIndex();
         }
     }
 
@@ -164,22 +225,24 @@ public class Repository {
         }
 
         Commit currentCommit = getCurrentCommit();
-        Map<String,String> blobs = new HashMap<>(currentCommit.getTrackedBlobs());
+        // only the staged files are looked at, the tree shares everything else with the current commit
+        Map<String,String> changes = new HashMap<>();
 
         // create blob for each file in addition area and store it in blob file
         additionFiles.forEach(fileName -> {
             File file = stageAreaService.getFileFromAddition(fileName);
-            String blobId = blobService.saveBlob(file);
-            blobs.put(fileName,blobId);
+            String blobId = blobService.saveBlob(file,commitService.getBlobId(currentCommit,fileName));
+            changes.put(fileName,blobId);
         });
 
         // remove file that staged in removal
-        removalFiles.forEach(blobs::remove);
+        removalFiles.forEach(fileName -> changes.put(fileName,null));
 
+        String tree = commitService.updateTree(currentCommit,changes);
         stageAreaService.clear();
 
         // create new commit
-        Commit newCommit = new Commit(message, Date.from(Instant.now()), currentCommit.getCommitId(),secondParent,blobs);
+        Commit newCommit = new Commit(message, Date.from(Instant.now()), currentCommit.getCommitId(),secondParent,tree);
         commitService.saveCommit(newCommit);
 
         // change current commit
@@ -194,12 +257,44 @@ public class Repository {
      * it start from current head commit
      */
     public void log() {
-        checkGitletDir();
-        getCommits(getCurrentCommit())
-                .stream()
-                .map(Commit::log)
-                .forEach(System.out::print);
+        log(false);
+    }
 
+    /**
+     * log [--abbrev-commit]
+     * Like log, printing each commit id as its shortest unique prefix of at least 7 characters
+     * @param abbreviate
+     */
+    public void log(boolean abbreviate) {
+        log(abbreviate, Integer.MAX_VALUE, Long.MIN_VALUE);
+    }
+
+    /**
+     * log [--abbrev-commit] [-n count] [--since date]
+     * Like log, stopping after COUNT commits or at the first commit made before SINCE.
+     * Commits are read one at a time as they are printed, so the walk ends
+     * as soon as the limit is reached and only the headers are decoded.
+     * @param abbreviate
+     * @param limit the largest number of commits to print
+     * @param since the earliest commit time to print, in milliseconds since the epoch
+     */
+    public void log(boolean abbreviate, int limit, long since) {
+        checkGitletDir();
+        Iterator<CommitMeta> history = commitService.history(getCurrentBranch().getCommitId());
+        LogFormatter formatter = new LogFormatter();
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+        try {
+            for (int count = 0; count < limit && history.hasNext(); count += 1) {
+                CommitMeta meta = history.next();
+                if (meta.getTimestamp() < since) break;
+                formatter.write(out, meta, abbreviate
+                        ? commitService.abbreviate(meta.getCommitId(), SHORT_ID_LENGTH)
+                        : meta.getCommitId());
+            }
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
     /**
@@ -209,10 +304,16 @@ public class Repository {
      */
     public void globalLog() {
         checkGitletDir();
-        commitService.getAllCommits()
-                .stream()
-                .map(Commit::log)
-                .forEach(System.out::print);
+        LogFormatter formatter = new LogFormatter();
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+        try {
+            for (CommitMeta meta : commitService.getAllCommitMetas()) {
+                formatter.write(out, meta, meta.getCommitId());
+            }
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
     /**
@@ -221,12 +322,23 @@ public class Repository {
      * @param commitMessage
      */
     public void find(String commitMessage) {
+        find(commitMessage, MessageIndex.Mode.EXACT);
+    }
+
+    /**
+     * find [--word | --prefix | --substring] [query]
+     * Print ids of all commits whose message matches the query:
+     * all its words, its words with the last one as a word prefix, or the query anywhere in the message
+     * @param query
+     * @param mode
+     */
+    public void find(String query, MessageIndex.Mode mode) {
         checkGitletDir();
-        List<Commit> commits = commitService.getAllCommitsByMessage(commitMessage);
-        if (commits.isEmpty()) {
+        List<String> commitIds = commitService.getCommitIdsByMessage(query, mode);
+        if (commitIds.isEmpty()) {
             systemExit("Found no commit with that message.");
         }
-        commits.forEach(commit -> System.out.println(commit.getCommitId()));
+        commitIds.forEach(System.out::println);
     }
 
     /**
@@ -252,19 +364,19 @@ public class Repository {
      */
     public void checkout(String commitHash, String fileName) {
         checkGitletDir();
-        Commit commit = commitService.getCommitBySha1(commitHash);
+        fileName = workDirService.normalize(fileName);
+        Commit commit = getCommitByPrefix(commitHash);
         if (commit == null) {
             systemExit("No commit with that id exists.");
         }
 
-        String blobName = commit.getTrackedBlobs().get(fileName);
+        String blobName = commitService.getBlobId(commit,fileName);
         if (blobName == null) {
             systemExit("File does not exist in that commit.");
         }
 
-        File blob = blobService.getBlob(blobName);
-        String content = readContentsAsString(blob);
-        workDirService.addFile(content,fileName);
+        workDirService.addFile(blobService.openBlob(blobName),fileName,blobName);
+        workDirService.saveIndex();
     }
 
     /**
@@ -339,11 +451,79 @@ public class Repository {
      */
     public void status() {
         checkGitletDir();
-        String logBuilder = String.format("%s\n", branchService.log(getCurrentBranch().getBranchName())) +
-                String.format("%s\n", stageAreaService.logAddition()) +
-                String.format("%s\n", stageAreaService.logRemoval()) +
-                "=== Modifications Not Staged For Commit ===\n\n" + // TODO
-                "=== Untracked Files ===\n\n"; // TODO
+        Commit currentCommit = getCurrentCommit();
+        Set<String> additionFiles = new HashSet<>(stageAreaService.getAdditionFilesNames());
+        Set<String> removalFiles = new HashSet<>(stageAreaService.getRemovalFilesNames());
+        Map<String,String> dirtyTracked = new HashMap<>();
+        List<String> dirtyFiles = getDirtyFiles(currentCommit, additionFiles, removalFiles, dirtyTracked);
+        List<String> workDirFiles;
+        Map<String,String> trackedFiles;
+        if (dirtyFiles != null) {
+            workDirFiles = dirtyFiles;
+            trackedFiles = dirtyTracked;
+        } else {
+            // the files of the head commit are read while the working tree is walked
+            ExecutorService reader = Executors.newSingleThreadExecutor();
+            Future<Map<String,String>> tracked = reader.submit(() -> getTrackedFiles(currentCommit));
+            workDirFiles = workDirService.getAllFileNames();
+            try {
+                trackedFiles = tracked.get();
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                throw error("Interrupted while reading the head commit.");
+            } catch (ExecutionException excp) {
+                throw new IllegalArgumentException(excp.getCause().getMessage());
+            } finally {
+                reader.shutdownNow();
+            }
+        }
+
+        // one pass over the working tree sorts every file into untracked, deleted, or to be compared
+        Map<String,String> modifications = new TreeMap<>();
+        List<String> untracked = new ArrayList<>();
+        List<String> compared = new ArrayList<>();
+        for (String fileName : workDirFiles) {
+            if (additionFiles.contains(fileName)
+                    || (trackedFiles.containsKey(fileName) && !removalFiles.contains(fileName))) {
+                compared.add(fileName);
+            } else {
+                untracked.add(fileName);
+            }
+        }
+        Set<String> working = new HashSet<>(workDirFiles);
+        additionFiles.stream()
+                .filter(fileName -> !working.contains(fileName))
+                .forEach(fileName -> modifications.put(fileName, "deleted"));
+        trackedFiles.keySet().stream()
+                .filter(fileName -> !working.contains(fileName) && !removalFiles.contains(fileName))
+                .forEach(fileName -> modifications.put(fileName, "deleted"));
+
+        // a staged file is compared with its staged copy, any other with the head commit
+        workDirService.getChangedFiles(compared,
+                fileName -> additionFiles.contains(fileName)
+                        ? sha1(stageAreaService.getFileFromAddition(fileName))
+                        : trackedFiles.get(fileName),
+                fileName -> additionFiles.contains(fileName)
+                        ? stageAreaService.getFileFromAddition(fileName).length()
+                        : blobService.getSize(trackedFiles.get(fileName)))
+                .forEach(fileName -> modifications.put(fileName, "modified"));
+        // every other file looked at is tracked, unstaged and as in the head commit
+        Map<String,String> dirtyPaths = new HashMap<>();
+        Stream.of(untracked, modifications.keySet(), additionFiles, removalFiles)
+                .flatMap(Collection::stream)
+                .forEach(fileName -> dirtyPaths.put(fileName, trackedFiles.get(fileName)));
+        workDirService.saveDirtyPaths(currentCommit.getTree(), dirtyPaths);
+        workDirService.saveIndex();
+
+        StringBuilder logBuilder = new StringBuilder();
+        logBuilder.append(String.format("%s\n", branchService.log(getCurrentBranch().getBranchName())));
+        logBuilder.append(String.format("%s\n", stageAreaService.logAddition()));
+        logBuilder.append(String.format("%s\n", stageAreaService.logRemoval()));
+        logBuilder.append("=== Modifications Not Staged For Commit ===\n");
+        modifications.forEach((fileName, change) -> logBuilder.append(String.format("%s (%s)\n", fileName, change)));
+        logBuilder.append("\n=== Untracked Files ===\n");
+        untracked.forEach(fileName -> logBuilder.append(String.format("%s\n", fileName)));
+        logBuilder.append("\n");
 
         System.out.println(logBuilder);
     }
@@ -359,14 +539,14 @@ public class Repository {
      */
     public void reset(String commitID) {
         checkGitletDir();
-        Commit commit = commitService.getCommitBySha1(commitID);
+        Commit commit = getCommitByPrefix(commitID);
         if (commit == null) {
             systemExit("No commit with that id exists.");
         }
 
         checkoutCommit(commit);
         Branch branch = getCurrentBranch();
-        branch.setCommitId(commitID);
+        branch.setCommitId(commit.getCommitId());
         branchService.saveBranch(branch);
     }
 
@@ -384,7 +564,8 @@ public class Repository {
         mergeFailureCases(currentCommit,branch);
 
         // get split point
-        Commit splitPoint = getSplitPoint(branch,currentCommit);
+        Commit splitPoint = commitService.getCommitBySha1(
+                commitService.getSplitPoint(currentCommit.getCommitId(), branch.getCommitId()));
 
         if (splitPoint.getCommitId().equals(branch.getCommitId())) {
             systemExit("Given branch is an ancestor of the current branch.");
@@ -397,66 +578,187 @@ public class Repository {
 
         Commit givenCommit = commitService.getCommitBySha1(branch.getCommitId());
 
-        Set<String> files = new HashSet<>();
-        files.addAll(currentCommit.getTrackedBlobs().keySet());
-        files.addAll(splitPoint.getTrackedBlobs().keySet());
-        files.addAll(givenCommit.getTrackedBlobs().keySet());
-
-        AtomicBoolean isConflict = new AtomicBoolean(false);
-        files.forEach(fileName -> {
-            String splitFile = splitPoint.getTrackedBlobs().get(fileName);
-            String commitFile = currentCommit.getTrackedBlobs().get(fileName);
-            String branchFile = givenCommit.getTrackedBlobs().get(fileName);
-
-            // if the given branch updated and current = split point
-            if (splitFile != null && branchFile != null
-                    && splitFile.equals(commitFile) && !splitFile.equals(branchFile)) {
-                String content = readContentsAsString(blobService.getBlob(branchFile));
-                workDirService.addFile(content,fileName);
-                stageAreaService.addInAddition(content,fileName);
+        // a file changed on neither side since the split point is left as it is
+        Set<String> changed = new HashSet<>();
+        changed.addAll(commitService.diff(splitPoint, currentCommit));
+        changed.addAll(commitService.diff(splitPoint, givenCommit));
+        List<String> files = new ArrayList<>(changed);
+        files.sort(null);
+
+        Map<String,String> splitFiles = splitPoint.getTrackedBlobs();
+        Map<String,String> currentFiles = currentCommit.getTrackedBlobs();
+        Map<String,String> givenFiles = givenCommit.getTrackedBlobs();
+
+        // files removed on the given branch are deleted after the others are written, deleting
+        // a file prunes its empty directories, which another file may be about to be written into
+        List<String> removed = files.stream()
+                .filter(fileName -> splitFiles.get(fileName) != null && givenFiles.get(fileName) == null
+                        && splitFiles.get(fileName).equals(currentFiles.get(fileName)))
+                .collect(Collectors.toList());
+        files.removeAll(new HashSet<>(removed));
+
+        // each file is resolved on its own, reading its blobs and writing its working and staged copies
+        boolean isConflict = false;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(MERGE_THREADS, files.size())));
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (String fileName : files) {
+                results.add(pool.submit(() -> mergeFile(fileName,
+                        splitFiles.get(fileName), currentFiles.get(fileName), givenFiles.get(fileName))));
             }
+            // results are read in file order, so the same file fails first whatever the timing
+            for (Future<Boolean> result : results) {
+                isConflict |= result.get();
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw error("Interrupted while merging.");
+        } catch (ExecutionException excp) {
+            throw new IllegalArgumentException(excp.getCause().getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+        // Any files present at the split point, unmodified in the current branch, and absent in the given branch should be removed (and untracked).
+        for (String fileName : removed) {
+            stageAreaService.addInRemoval(fileName);
+            workDirService.deleteFile(fileName);
+        }
 
+        String commitMessage = "Merged " + branchName + " into " + getCurrentBranch().getBranchName();
+        commit(commitMessage,givenCommit.getCommitId());
+        workDirService.saveIndex();
 
-            //Any files that were not present at the split point and are present only in the given branch should be checked out and staged
-            if (splitFile == null && commitFile == null && branchFile != null) {
-                String content = readContentsAsString(blobService.getBlob(branchFile));
-                workDirService.addFile(content,fileName);
-                stageAreaService.addInAddition(content,fileName);
-            }
+        if (isConflict) {
+            System.out.println("Encountered a merge conflict.");
+        }
+    }
 
-            // Any files present at the split point, unmodified in the current branch, and absent in the given branch should be removed (and untracked).
-            if (splitFile != null && splitFile.equals(commitFile) && branchFile == null) {
-                String content = readContentsAsString(blobService.getBlob(commitFile));
-                stageAreaService.addInRemoval(content,fileName);
-                workDirService.deleteFile(fileName);
-            }
+    /**
+     * Resolve one file of a merge from its versions at the split point, in the current and in the given branch;
+     * files only removed on the given branch are deleted by merge once the others are written
+     * @param fileName
+     * @param splitFile
+     * @param commitFile
+     * @param branchFile
+     * @return true if the file is in conflict
+     */
+    private boolean mergeFile(String fileName, String splitFile, String commitFile, String branchFile) {
+        // if the given branch updated and current = split point
+        if (splitFile != null && branchFile != null
+                && splitFile.equals(commitFile) && !splitFile.equals(branchFile)) {
+            workDirService.addFile(blobService.openBlob(branchFile),fileName,branchFile);
+            stageAreaService.addInAddition(workDirService.getFile(fileName),fileName);
+        }
 
-            if (!Objects.equals(commitFile,splitFile)
-                    && !Objects.equals(branchFile,splitFile)
-                    && !Objects.equals(commitFile,branchFile)) {
-                String currentContent = commitFile != null ? readContentsAsString(blobService.getBlob(commitFile)) : "";
-                String branchContent = branchFile != null ? readContentsAsString(blobService.getBlob(branchFile)) : "";
-                String content = "<<<<<<< HEAD\n" +
-                        currentContent +
-                        "=======\n" +
-                        branchContent +
-                        ">>>>>>>\n";
-                workDirService.addFile(content,fileName);
-                stageAreaService.addInAddition(content,fileName);
-                isConflict.set(true);
-            }
 
+        //Any files that were not present at the split point and are present only in the given branch should be checked out and staged
+        if (splitFile == null && commitFile == null && branchFile != null) {
+            workDirService.addFile(blobService.openBlob(branchFile),fileName,branchFile);
+            stageAreaService.addInAddition(workDirService.getFile(fileName),fileName);
+        }
 
-        });
+        if (!Objects.equals(commitFile,splitFile)
+                && !Objects.equals(branchFile,splitFile)
+                && !Objects.equals(commitFile,branchFile)) {
+            workDirService.addFile(conflictContent(commitFile,branchFile),fileName);
+            stageAreaService.addInAddition(workDirService.getFile(fileName),fileName);
+            return true;
+        }
+        return false;
+    }
 
-        String commitMessage = "Merged " + branchName + " into " + getCurrentBranch().getBranchName();
-        commit(commitMessage,givenCommit.getCommitId());
+    /**
+     * repack
+     * Consolidates all loose commits, trees and blobs, together with any existing pack,
+     * into a single pack file with a sorted index, and removes the loose copies
+     */
+    public void repack() {
+        checkGitletDir();
+        packStore.repack(List.of(commitStore, treeStore, blobStore));
+    }
 
-        if (isConflict.get()) {
-            System.out.println("Encountered a merge conflict.");
+    /**
+     * gc [--dry-run] [--grace seconds]
+     * Removes the commits that no branch reaches any more, such as the commits
+     * left behind by reset or rm-branch, and the trees and blobs only they use.
+     * Unreachable objects written within the grace period are kept
+     * @param dryRun only print what would be removed
+     * @param graceSeconds
+     */
+    public void gc(boolean dryRun, long graceSeconds) {
+        checkGitletDir();
+        List<String> roots = branchService.getBranches().stream()
+                .map(branchName -> branchService.getBranch(branchName).getCommitId())
+                .collect(Collectors.toList());
+        roots.add(getCurrentBranch().getCommitId());
+        gcService.collect(roots, graceSeconds * 1000, dryRun);
+        if (!dryRun) {
+            commitService.rebuildIndex();
         }
     }
 
+    /**
+     * rebuild-index
+     * Rebuilds the commit index from the stored commits,
+     * for repositories created before the index existed
+     */
+    public void rebuildIndex() {
+        checkGitletDir();
+        commitService.rebuildIndex();
+    }
+
+    /**
+     * migrate-objects
+     * Moves the loose commits and blobs written before the fan-out layout
+     * into their two-digit subdirectories
+     */
+    public void migrateObjects() {
+        checkGitletDir();
+        int moved = commitStore.migrateLayout() + blobStore.migrateLayout();
+        System.out.println("Migrated " + moved + " objects.");
+    }
+
+    /**
+     * monitor
+     * Watches the working tree until killed, logging the paths touched so that
+     * status and the other commands that list the working tree only look at those
+     */
+    public void monitor() {
+        checkGitletDir();
+        monitor.run();
+    }
+
+    /**
+     * Print the object store statistics of this run on stderr
+     * how many writes were skipped, how many existence checks the filters answered
+     * and the hit rates of the blob and commit caches
+     */
+    public void printStats() {
+        System.err.println("commits: " + commitStore.getStats());
+        System.err.println("trees: " + treeStore.getStats());
+        System.err.println("blobs: " + blobStore.getStats());
+        System.err.println("blob cache: " + blobService.getCacheStats());
+        System.err.println("commit cache: " + commitService.getCacheStats());
+        System.err.println("tree cache: " + treeService.getCacheStats());
+    }
+
+    /**
+     * Stream the content of a conflicted file: the current and given versions
+     * between conflict markers, an absent version is treated as empty
+     * @param currentBlob
+     * @param branchBlob
+     * @return
+     */
+    private InputStream conflictContent(String currentBlob, String branchBlob) {
+        List<InputStream> parts = List.of(
+                new ByteArrayInputStream("<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8)),
+                currentBlob != null ? blobService.openBlob(currentBlob) : InputStream.nullInputStream(),
+                new ByteArrayInputStream("=======\n".getBytes(StandardCharsets.UTF_8)),
+                branchBlob != null ? blobService.openBlob(branchBlob) : InputStream.nullInputStream(),
+                new ByteArrayInputStream(">>>>>>>\n".getBytes(StandardCharsets.UTF_8)));
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
     /**
      * If there are staged additions or removals present print "You have uncommitted changes."
      * If a branch with the given name does not exist print "A branch with that name does not exist."
@@ -479,63 +781,46 @@ public class Repository {
             systemExit("Cannot merge a branch with itself.");
         }
 
-        List<File> workDirFiles = workDirService.getAllFiles();
-        if (workDirFiles.stream()
-                .map(File::getName)
-                .anyMatch(fileName ->
-                        !commit.getTrackedBlobs().containsKey(fileName) ||
-                                !commit.getTrackedBlobs().get(fileName)
-                                        .equals(workDirService.getHashedFile(fileName))
-                )
+        // every working file must be tracked and unchanged, the tracked ones are hashed in parallel
+        List<String> workDirFiles = workDirService.getAllFileNames();
+        Map<String,String> trackedFiles = commit.getTrackedBlobs();
+        if (!trackedFiles.keySet().containsAll(workDirFiles)
+                || !workDirService.getHashedFiles(workDirFiles).entrySet().stream()
+                        .allMatch(file -> file.getValue().equals(trackedFiles.get(file.getKey())))
         ) {
             systemExit("There is an untracked file in the way; delete it, or add and commit it first.");
         }
     }
 
-    private Commit getSplitPoint(Branch branch, Commit currentCommit) {
-        Commit branchCommit = commitService.getCommitBySha1(branch.getCommitId());
-
-        // get commit tree for current commit
-        // get commit tree for branch commit
-        // return latest common ancestor
-        Set<String> currentCommitTree = getCommitTree(currentCommit).stream()
-                .map(Commit::getCommitId).collect(Collectors.toSet());
-
-        List<Commit> branchCommitTree = getCommitTree(branchCommit);
-
-        return branchCommitTree.stream()
-                .filter(commit -> currentCommitTree.contains(commit.getCommitId()))
-                .max(Comparator.comparing(Commit::getTimestamp))
-                .orElse(null);
-    }
-
-    private List<Commit> getCommitTree(Commit commit) {
-        List<Commit> res = new ArrayList<>();
-        // dfs over commit, commit might be merge commit and have the second parent
-        // in merge commit the commits form will be a full directed acyclic graph
-        dfs(commit,res, new HashSet<>());
-        return res;
+    private void checkGitletDir() {
+        if (!GITLET_DIR.exists()) {
+            systemExit("Not in an initialized Gitlet directory.");
+        }
     }
 
-    private void dfs(Commit commit, List<Commit> res, Set<Commit> visited) {
-        Commit firstParent = commitService.getCommitBySha1(commit.getParent());
-        Commit secondParent = commitService.getCommitBySha1(commit.getSecondParent());
-
-        res.add(commit);
-        visited.add(commit);
-        while (firstParent != null && !visited.contains(firstParent)) {
-            dfs(firstParent,res,visited);
+    /**
+     * Find the commit with the given id or unique abbreviation of its id
+     * @param commitId
+     * @return the commit, or null if there is none
+     */
+    private Commit getCommitByPrefix(String commitId) {
+        if (commitId.length() >= UID_LENGTH) {
+            return commitService.getCommitBySha1(commitId);
         }
-
-        while (secondParent != null && !visited.contains(secondParent)) {
-            dfs(secondParent,res,visited);
+        if (commitId.length() < MIN_ABBREV_LENGTH) {
+            systemExit(String.format("Abbreviated commit ids need at least %d characters.", MIN_ABBREV_LENGTH));
         }
-    }
-
-    private void checkGitletDir() {
-        if (!GITLET_DIR.exists()) {
-            systemExit("Not in an initialized Gitlet directory.");
+        if (!commitId.matches("[0-9a-fA-F]+")) {
+            return null;
         }
+        List<String> commitIds = commitService.getCommitIdsByPrefix(commitId.toLowerCase(), 3);
+        if (commitIds.size() > 1) {
+            String matches = commitIds.size() > 2
+                    ? String.format("%s, %s and others", commitIds.get(0), commitIds.get(1))
+                    : String.format("%s and %s", commitIds.get(0), commitIds.get(1));
+            systemExit(String.format("Ambiguous commit id %s, it matches %s.", commitId, matches));
+        }
+        return commitIds.isEmpty() ? null : commitService.getCommitBySha1(commitIds.get(0));
     }
 
     private Branch getCurrentBranch() {
@@ -545,47 +830,118 @@ public class Repository {
         return commitService.getCommitBySha1(getCurrentBranch().getCommitId());
     }
 
+    /**
+     * @param commit the head commit
+     * @return the blob id of every file of the head commit by path, from the stat index when it keeps
+     * them for the head tree, otherwise from the trees, and then kept
+     */
+    private Map<String,String> getTrackedFiles(Commit commit) {
+        Map<String,String> kept = workDirService.getHeadBlobs(commit.getTree());
+        if (kept != null) return kept;
+        Map<String,String> files = commit.getTrackedBlobs();
+        if (commit.getTree() != null) {
+            workDirService.recordHeadBlobs(commit.getTree(), files);
+        }
+        return files;
+    }
+
+    /**
+     * With the monitor's dirty paths, find the only files status needs to
+     * look at: the paths status last found differing from the head tree it
+     * recorded, those touched since and the files below them, the files
+     * changed between that tree and the head tree, and the staged files.
+     * The paths recorded against the head tree are not looked up in it again.
+     * @param commit the head commit
+     * @param additionFiles
+     * @param removalFiles
+     * @param tracked where the blob id of each file of the head commit looked at is put
+     * @return the sorted working files to look at, or null if the whole working tree must be
+     */
+    private List<String> getDirtyFiles(Commit commit, Collection<String> additionFiles,
+                                       Collection<String> removalFiles, Map<String,String> tracked) {
+        String treeId = commit.getTree();
+        if (treeId == null) return null;
+        WorkDirMonitor.Dirty dirty = workDirService.getDirtyPaths();
+        if (dirty == null) return null;
+        Set<String> paths = new HashSet<>(dirty.getPaths().keySet());
+        paths.addAll(additionFiles);
+        paths.addAll(removalFiles);
+        if (!dirty.getTree().equals(treeId)) {
+            if (!treeStore.contains(dirty.getTree())) return null;
+            paths.addAll(treeService.diff(dirty.getTree(), treeId));
+        }
+        Map<String,String> recorded = dirty.getTree().equals(treeId) ? dirty.getTracked() : Map.of();
+        for (String path : paths) {
+            String blobId = recorded.containsKey(path) ? recorded.get(path) : treeService.findFile(treeId, path);
+            if (blobId != null) tracked.put(path, blobId);
+        }
+        // a touched directory may be gone with the files it had
+        for (String path : dirty.getChanges().getTouched()) {
+            tracked.putAll(treeService.getFiles(treeId, path));
+        }
+        return workDirService.getWorkingFiles(paths);
+    }
+
     private void checkFileExist(String fileName) {
         if (!workDirService.fileExist(fileName)) {
             systemExit("File does not exist.");
         }
     }
 
-    private List<Commit> getCommits(Commit commit) {
-        List<Commit> res = new ArrayList<>();
-        Commit cur = commit;
-        while (cur != null) {
-            res.add(cur);
-            String parentSha1 = cur.getParent();
-            if (parentSha1 != null)
-                cur = commitService.getCommitBySha1(parentSha1);
-            else cur = null;
-        }
-        return res;
-    }
+    /**
+     * Bring the working tree from the current commit to COMMIT, deleting,
+     * creating or overwriting only the files that differ from it: those that
+     * differ between the two commits, and the files both commits track alike
+     * whose working copy was changed or deleted, as the stat index or the
+     * monitor tells without reading the others.  Untracked files the checkout
+     * does not write are left as they are.
+     * @param commit the target commit, loaded once by the caller
+     */
     private void checkoutCommit(Commit commit) {
-        // check if their untracked file in working dir
         Commit currentCommit = getCurrentCommit();
-        List<File> workDirFiles = workDirService.getAllFiles();
-
-        // check if this file exist in the current commit or not
-        // if exist check is tracked or untracked
-        // if untracked and the file exist in the target branch/commit print error message and exit
-        if (workDirFiles.stream()
-                .map(File::getName)
-                .filter(fileName ->
-                        !currentCommit.getTrackedBlobs().containsKey(fileName) ||
-                        !currentCommit.getTrackedBlobs().get(fileName)
-                                .equals(workDirService.getHashedFile(fileName))
-                ) // get files not untracked in the current commit
-                .anyMatch(fileName -> commit.getTrackedBlobs().containsKey(fileName)) // and this file is exist the target branch, and would be overwritten
+        List<String> changed = commitService.diff(currentCommit, commit);
+        Map<String,String> currentFiles = getTrackedFiles(currentCommit);
+
+        Map<String,String> targetFiles = new HashMap<>();
+        SortedMap<String,String> written = new TreeMap<>();
+        List<String> deleted = new ArrayList<>();
+        for (String fileName : changed) {
+            String blobId = commitService.getBlobId(commit, fileName);
+            targetFiles.put(fileName, blobId);
+            if (blobId != null) {
+                written.put(fileName, blobId);
+            } else {
+                deleted.add(fileName);
+            }
+        }
+        // a file the commits share is rewritten when it is gone from the working tree or differs from its blob
+        Set<String> working = new HashSet<>(workDirService.getAllFileNames());
+        List<String> shared = new ArrayList<>();
+        currentFiles.forEach((fileName, blobId) -> {
+            if (targetFiles.containsKey(fileName)) return;
+            if (working.contains(fileName)) {
+                shared.add(fileName);
+            } else {
+                written.put(fileName, blobId);
+            }
+        });
+        workDirService.getChangedFiles(shared, currentFiles::get,
+                        fileName -> blobService.getSize(currentFiles.get(fileName)))
+                .forEach(fileName -> written.put(fileName, currentFiles.get(fileName)));
+
+        // a working file the checkout would overwrite is in the way if the current commit does not track it,
+        // as is a file where a directory goes, or an untracked file in a directory where a file goes
+        if (written.keySet().stream().anyMatch(fileName -> !currentFiles.containsKey(fileName)
+                        && workDirService.fileExist(fileName))
+                || !workDirService.getBlockers(written.keySet(), deleted).isEmpty()
         ) {
             systemExit("There is an untracked file in the way; delete it, or add and commit it first.");
         }
 
-        workDirService.clear();
+        // the new files are all written aside before any working file is touched, a failure changes nothing
+        workDirService.addFiles(written, deleted, blobService::openBlob, CHECKOUT_THREADS);
+        workDirService.updateHeadBlobs(currentCommit.getTree(), commit.getTree(), targetFiles);
         stageAreaService.clear();
-        commit.getTrackedBlobs().keySet()
-                .forEach(fileName -> checkout(commit.getCommitId(),fileName));
+        workDirService.saveIndex();
     }
 }
@@ -14,26 +14,31 @@ public class StageAreaService {
         REMOVE_DIR = removeDir;
     }
 
+    /**
+     * @return the paths of the files staged for addition, kept in the same directories as in the working tree
+     */
     public List<String> getAdditionFilesNames() {
-        return Utils.plainFilenamesIn(ADD_DIR);
+        return Utils.plainFilePathsIn(ADD_DIR);
     }
 
     public List<String> getRemovalFilesNames() {
-        return Utils.plainFilenamesIn(REMOVE_DIR);
+        return Utils.plainFilePathsIn(REMOVE_DIR);
     }
 
-    public void addInAddition(File file) {
-        writeContents(join(ADD_DIR,file.getName()),readContentsAsString(file));
-    }
-
-    public void addInAddition(String content,String fileName) {
-        File file = join(ADD_DIR,fileName);
-        writeContents(file,content);
+    /**
+     * Stage a copy of file for addition
+     * @param file
+     * @param fileName its path in the working tree
+     */
+    public void addInAddition(File file, String fileName) {
+        File target = getStagedFile(ADD_DIR,fileName);
+        createParentDirs(target);
+        copyContents(file,target);
     }
 
     public File getFileFromAddition(String fileName) {
-        File file = join(ADD_DIR,fileName);
-        return file.exists() ? file : null;
+        File file = getStagedFile(ADD_DIR,fileName);
+        return file.isFile() ? file : null;
     }
 
     public void deleteFromAddition(String fileName) {
@@ -45,25 +50,31 @@ public class StageAreaService {
 
     public void deleteFromAddition(File file) {
         file.delete();
+        deleteEmptyParents(file,ADD_DIR);
     }
 
     public File getFileFromRemoval(String fileName) {
-        File file = join(REMOVE_DIR,fileName);
-        return file.exists() ? file : null;
-    }
-
-    public void addInRemoval(File file){
-        writeContents(join(REMOVE_DIR,file.getName()), readContentsAsString(file));
+        File file = getStagedFile(REMOVE_DIR,fileName);
+        return file.isFile() ? file : null;
     }
 
-    public void addInRemoval(String content,String fileName) {
-        File file = join(REMOVE_DIR,fileName);
-        writeContents(file,content);
+    /**
+     * Stage file for removal
+     * only the name of a removed file matters, so an empty marker is written
+     * @param fileName
+     */
+    public void addInRemoval(String fileName) {
+        File file = getStagedFile(REMOVE_DIR,fileName);
+        createParentDirs(file);
+        writeContents(file);
     }
 
     public void deleteFromRemoval(String fileName) {
         File file = getFileFromRemoval(fileName);
-        if (file != null) file.delete();
+        if (file != null) {
+            file.delete();
+            deleteEmptyParents(file,REMOVE_DIR);
+        }
     }
 
     public void clear() {
@@ -95,4 +106,9 @@ public class StageAreaService {
         return getAdditionFilesNames().isEmpty() && getRemovalFilesNames().isEmpty();
     }
 
+    /** The staged copy of a file in DIR, at its path in the working tree, which never leaves DIR. */
+    private static File getStagedFile(File dir, String fileName) {
+        return join(dir,normalizePath(dir,fileName));
+    }
+
 }
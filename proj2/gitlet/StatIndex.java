@@ -0,0 +1,346 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/** The stat index: the size, modification time, file key and blob id of
+ *  every working file hashed or written, so that a file whose stat has not
+ *  changed is known by its recorded blob id without being read again.
+ *  <pre>
+ *      index  'GSIX' version count, then count entries:
+ *             path (modified UTF-8) size (8 bytes) mtime in nanoseconds (8 bytes)
+ *             file key (modified UTF-8, empty when the file system has none)
+ *             blob id (20 bytes)
+ *      head   'GSIH' version head tree id (20 bytes) count, then count entries:
+ *             path (modified UTF-8) blob id (20 bytes)
+ *  </pre>
+ *  The head file keeps the blob id of every file of one tree, the head
+ *  commit's when it was written, so that status does not decode the trees
+ *  of the head commit each time it runs.  It is read apart from the stat
+ *  entries, which status does not need when the monitor is running.
+ *  A file changed again within the clock tick of its last change keeps its
+ *  time, so as in git an entry whose time is not older than the index file
+ *  is racy: the file may have changed after it was looked at, in the same
+ *  tick, so it is hashed again instead of trusted.  It is trusted once an
+ *  index written in a later tick has recorded it.  The index is only a
+ *  cache, an unreadable one is dropped and rebuilt.
+ */
+public class StatIndex {
+    private static final byte[] MAGIC = {'G', 'S', 'I', 'X'};
+    private static final byte[] HEAD_MAGIC = {'G', 'S', 'I', 'H'};
+    private static final int VERSION = 1;
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    private final File INDEX_FILE;
+    /** Read once, then looked up without a lock by the threads hashing files. */
+    private volatile Map<String, Entry> entries;
+    /** The modification time of the index when it was read, no entry as recent is trusted. */
+    private long indexTime;
+    private volatile boolean changed;
+
+    private final File HEAD_FILE;
+    /** The tree whose files are in headBlobs, null if none is kept. */
+    private String headTree;
+    private Map<String, String> headBlobs;
+    private boolean headChanged;
+
+    public StatIndex(File indexFile, File headFile) {
+        INDEX_FILE = indexFile;
+        HEAD_FILE = headFile;
+    }
+
+    /**
+     * @param file
+     * @param path the path of the file in the working tree
+     * @return the blob id of the file, from the index when its stat is unchanged
+     */
+    public String getBlobId(File file, String path) {
+        Entry stat = stat(file);
+        String known = getKnownBlobId(stat, path);
+        if (known != null) return known;
+        String blobId = sha1(file);
+        put(path, stat.withBlobId(blobId));
+        return blobId;
+    }
+
+    /**
+     * @param file
+     * @param path the path of the file in the working tree
+     * @return the recorded blob id of the file if its stat is unchanged, null if it would have to be hashed
+     */
+    public String getKnownBlobId(File file, String path) {
+        return getKnownBlobId(stat(file), path);
+    }
+
+    /**
+     * @param attributes the attributes of the file, as just read by a walk of the working tree
+     * @param path the path of the file in the working tree
+     * @return the recorded blob id of the file if its stat is unchanged, null if it would have to be hashed
+     */
+    public String getKnownBlobId(BasicFileAttributes attributes, String path) {
+        return getKnownBlobId(stat(attributes), path);
+    }
+
+    private String getKnownBlobId(Entry stat, String path) {
+        Entry entry = get(path);
+        return entry != null && entry.sameStat(stat) && entry.mtime < indexTime ? entry.blobId : null;
+    }
+
+    /**
+     * Record the blob id of a file just written from that blob
+     * @param file
+     * @param path
+     * @param blobId
+     */
+    public void record(File file, String path, String blobId) {
+        put(path, stat(file).withBlobId(blobId));
+    }
+
+    /**
+     * Forget a file that was removed or written with content of no known blob
+     * @param path
+     */
+    public void remove(String path) {
+        if (load().remove(path) != null) {
+            changed = true;
+        }
+    }
+
+    /**
+     * @param treeId the root tree of the head commit
+     * @return the blob id of every file of that tree by path, or null if they are not kept for it
+     */
+    public synchronized Map<String, String> getHeadBlobs(String treeId) {
+        loadHead();
+        return treeId != null && treeId.equals(headTree) ? Collections.unmodifiableMap(headBlobs) : null;
+    }
+
+    /**
+     * Keep the files of the head tree in place of those kept before
+     * @param treeId
+     * @param blobs the blob id of every file of the tree by path
+     */
+    public synchronized void recordHeadBlobs(String treeId, Map<String, String> blobs) {
+        headTree = treeId;
+        headBlobs = new HashMap<>(blobs);
+        headChanged = true;
+    }
+
+    /**
+     * Move the kept files of the head tree to another tree, if they are kept for the tree it is changed from
+     * @param fromTree
+     * @param toTree
+     * @param changes the blob id of each file changed from one tree to the other by path, null for a removed file
+     */
+    public synchronized void updateHeadBlobs(String fromTree, String toTree, Map<String, String> changes) {
+        loadHead();
+        if (fromTree == null || toTree == null || !fromTree.equals(headTree)) return;
+        changes.forEach((path, blobId) -> {
+            if (blobId == null) {
+                headBlobs.remove(path);
+            } else {
+                headBlobs.put(path, blobId);
+            }
+        });
+        headTree = toTree;
+        headChanged = true;
+    }
+
+    /** Write the index, and the files of the head tree, if anything was recorded since they were read. */
+    public synchronized void save() {
+        if (changed) {
+            write(INDEX_FILE, out -> {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                    Entry entry = item.getValue();
+                    out.writeUTF(item.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.mtime);
+                    out.writeUTF(entry.fileKey);
+                    out.write(fromHex(entry.blobId));
+                }
+            });
+            changed = false;
+        }
+        if (headChanged) {
+            write(HEAD_FILE, out -> {
+                out.write(HEAD_MAGIC);
+                out.writeInt(VERSION);
+                out.write(fromHex(headTree));
+                out.writeInt(headBlobs.size());
+                for (Map.Entry<String, String> item : headBlobs.entrySet()) {
+                    out.writeUTF(item.getKey());
+                    out.write(fromHex(item.getValue()));
+                }
+            });
+            headChanged = false;
+        }
+    }
+
+    /** Write a file whole, to a temporary file renamed over it. */
+    private static void write(File file, Contents contents) {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath()), BUFFER_SIZE))) {
+                contents.write(out);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    private interface Contents {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private Entry get(String path) {
+        return load().get(path);
+    }
+
+    private void put(String path, Entry entry) {
+        load().put(path, entry);
+        changed = true;
+    }
+
+    private static Entry stat(File file) {
+        try {
+            return stat(Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static Entry stat(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return new Entry(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                fileKey == null ? "" : fileKey.toString(), null);
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> loaded = entries;
+        return loaded != null ? loaded : read();
+    }
+
+    private synchronized Map<String, Entry> read() {
+        if (entries == null) {
+            Map<String, Entry> read = new ConcurrentHashMap<>();
+            if (!readInto(read)) {
+                read.clear();
+                changed = true;
+            }
+            entries = read;
+        }
+        return entries;
+    }
+
+    /**
+     * The index is read whole and parsed in place, it is read by every status
+     * @return false if the index is unreadable and should be dropped
+     */
+    private boolean readInto(Map<String, Entry> read) {
+        try {
+            byte[] data = Files.readAllBytes(INDEX_FILE.toPath());
+            indexTime = Files.getLastModifiedTime(INDEX_FILE.toPath()).to(TimeUnit.NANOSECONDS);
+            ByteBuffer in = ByteBuffer.wrap(data);
+            if (!readHeader(in, MAGIC)) {
+                return false;
+            }
+            int count = in.getInt();
+            byte[] id = new byte[ID_LENGTH];
+            for (int i = 0; i < count; i += 1) {
+                String name = readUTF(in);
+                long size = in.getLong();
+                long mtime = in.getLong();
+                String fileKey = readUTF(in);
+                in.get(id);
+                read.put(name, new Entry(size, mtime, fileKey, toHex(id)));
+            }
+        } catch (NoSuchFileException excp) {
+            return true;
+        } catch (BufferUnderflowException | UTFDataFormatException excp) {
+            return false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return true;
+    }
+
+    /** Read the files of the head tree once, none are kept if they cannot be read. */
+    private void loadHead() {
+        if (headBlobs != null) return;
+        headBlobs = new HashMap<>();
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(HEAD_FILE.toPath()));
+            if (!readHeader(in, HEAD_MAGIC)) return;
+            byte[] id = new byte[ID_LENGTH];
+            in.get(id);
+            String tree = toHex(id);
+            int count = in.getInt();
+            Map<String, String> read = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i += 1) {
+                String name = readUTF(in);
+                in.get(id);
+                read.put(name, toHex(id));
+            }
+            headTree = tree;
+            headBlobs = read;
+        } catch (NoSuchFileException | BufferUnderflowException | UTFDataFormatException excp) {
+            return;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static boolean readHeader(ByteBuffer in, byte[] magic) {
+        byte[] read = new byte[magic.length];
+        in.get(read);
+        return Arrays.equals(read, magic) && in.getInt() == VERSION;
+    }
+
+    /** The stat of a file and the blob id it had then. */
+    private static class Entry {
+        private final long size;
+        private final long mtime;
+        private final String fileKey;
+        private final String blobId;
+
+        Entry(long size, long mtime, String fileKey, String blobId) {
+            this.size = size;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+            this.blobId = blobId;
+        }
+
+        boolean sameStat(Entry other) {
+            return size == other.size && mtime == other.mtime && fileKey.equals(other.fileKey);
+        }
+
+        Entry withBlobId(String blobId) {
+            return new Entry(size, mtime, fileKey, blobId);
+        }
+    }
+}
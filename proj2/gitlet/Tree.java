@@ -0,0 +1,87 @@
+package gitlet;
+
+import java.util.Collections;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/** A tree object: the manifest of one directory, its entries sorted by name.
+ *  An entry is a file naming its blob, or a subdirectory naming its tree.
+ *  The entries of a large directory are spread over shards instead, see
+ *  {@link TreeService}; a sharded tree only has SHARD entries, named by a
+ *  hexadecimal digit and counting the directory entries below them.
+ */
+public class Tree {
+    static final byte FILE = 0;
+    static final byte DIRECTORY = 1;
+    static final byte SHARD = 2;
+
+    private final SortedMap<String, Entry> entries;
+
+    public Tree(SortedMap<String, Entry> entries) {
+        this.entries = Collections.unmodifiableSortedMap(new TreeMap<>(entries));
+    }
+
+    public SortedMap<String, Entry> getEntries() {
+        return entries;
+    }
+
+    public boolean isSharded() {
+        return !entries.isEmpty() && entries.get(entries.firstKey()).getKind() == SHARD;
+    }
+
+    /**
+     * @return the number of directory entries of this tree, over all its shards
+     */
+    public long size() {
+        if (!isSharded()) return entries.size();
+        return entries.values().stream().mapToLong(Entry::getCount).sum();
+    }
+
+    /** One entry of a tree. */
+    public static class Entry {
+        private final byte kind;
+        private final String id;
+        private final long count;
+
+        public Entry(byte kind, String id, long count) {
+            this.kind = kind;
+            this.id = id;
+            this.count = count;
+        }
+
+        public static Entry file(String blobId) {
+            return new Entry(FILE, blobId, 0);
+        }
+
+        public static Entry directory(String treeId) {
+            return new Entry(DIRECTORY, treeId, 0);
+        }
+
+        public byte getKind() {
+            return kind;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /** The number of directory entries below a SHARD entry. */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Entry)) return false;
+            Entry entry = (Entry) o;
+            return kind == entry.kind && count == entry.count && id.equals(entry.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, id, count);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** Reads and writes the trees of commits.
+ *  A tree holds one directory; its subdirectories are trees of their own,
+ *  so a commit only writes the trees on the paths of the files it changes
+ *  and shares every other tree with its parent.  A directory of more than
+ *  SHARD_LIMIT entries is split into up to 16 shards by the hexadecimal
+ *  digit of the sha1 of the entry name at the depth of the shard, each
+ *  shard split again while it is too large.  The layout only depends on
+ *  the entries, so equal directories always have equal tree ids, and
+ *  changing one file of a large directory rewrites a few small shards
+ *  instead of the whole listing.
+ */
+public class TreeService {
+    /** Largest number of entries a tree holds before it is split into shards. */
+    static final int SHARD_LIMIT = 256;
+    /** The digits of a sha1, the deepest a shard can be. */
+    private static final int MAX_DEPTH = UID_LENGTH;
+    /** Number of tree entries kept decoded, trees never change so they are shared freely. */
+    private static final long TREE_CACHE_SIZE = 1 << 16;
+
+    private final ObjectStore treeStore;
+    private final LruCache<Tree> treeCache = new LruCache<>(TREE_CACHE_SIZE, tree -> tree.getEntries().size() + 1);
+
+    public TreeService(ObjectStore treeStore) {
+        this.treeStore = treeStore;
+    }
+
+    public Tree getTree(String treeId) {
+        Tree cached = treeCache.get(treeId);
+        if (cached != null) return cached;
+        byte[] content = treeStore.read(treeId);
+        if (content == null) {
+            throw error("Missing tree %s.", treeId);
+        }
+        return treeCache.putIfAbsent(treeId, BinaryCodec.decodeTree(content));
+    }
+
+    /**
+     * @return the hit rate statistics of the tree cache
+     */
+    public String getCacheStats() {
+        return treeCache.getStats();
+    }
+
+    /**
+     * Write the tree of TREEID with CHANGES applied, rewriting only the trees
+     * on the paths of the changed files
+     * @param treeId the tree to change, null for the empty tree
+     * @param changes the new blob id of each changed path, null for a removed path
+     * @return the id of the new tree
+     */
+    public String update(String treeId, Map<String, String> changes) {
+        String updated = updateDirectory(treeId, changes);
+        return updated != null ? updated : write(new TreeMap<>(), 0).getId();
+    }
+
+    /**
+     * @param treeId
+     * @param path a file path, directories separated by '/'
+     * @return the blob id of the file at PATH, or null if the tree has no such file
+     */
+    public String findFile(String treeId, String path) {
+        String[] names = path.split("/");
+        String current = treeId;
+        for (int i = 0; i < names.length; i += 1) {
+            Tree.Entry entry = find(current, names[i], 0);
+            if (entry == null) return null;
+            if (i == names.length - 1) {
+                return entry.getKind() == Tree.FILE ? entry.getId() : null;
+            }
+            if (entry.getKind() != Tree.DIRECTORY) return null;
+            current = entry.getId();
+        }
+        return null;
+    }
+
+    /**
+     * @param treeId
+     * @return the blob id of every file of the tree by path
+     */
+    public Map<String, String> getFiles(String treeId) {
+        Map<String, String> files = new HashMap<>();
+        collectFiles(treeId, "", files);
+        return files;
+    }
+
+    /**
+     * @param treeId
+     * @param dir a directory path, directories separated by '/'
+     * @return the blob id of every file below DIR by path, none if the tree has no such directory
+     */
+    public Map<String, String> getFiles(String treeId, String dir) {
+        Map<String, String> files = new HashMap<>();
+        String current = treeId;
+        for (String name : dir.split("/")) {
+            Tree.Entry entry = find(current, name, 0);
+            if (entry == null || entry.getKind() != Tree.DIRECTORY) return files;
+            current = entry.getId();
+        }
+        collectFiles(current, dir + "/", files);
+        return files;
+    }
+
+    /**
+     * Compare two trees, skipping every subtree or shard with the same id on both sides
+     * @param first
+     * @param second
+     * @return the sorted paths of the files added, removed or changed from FIRST to SECOND
+     */
+    public List<String> diff(String first, String second) {
+        List<String> paths = new ArrayList<>();
+        diff(first, second, "", paths);
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private String updateDirectory(String treeId, Map<String, String> changes) {
+        Map<String, Tree.Entry> entries = new HashMap<>();
+        Map<String, Map<String, String>> subdirectories = new HashMap<>();
+        changes.forEach((path, blobId) -> {
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                entries.put(path, blobId == null ? null : Tree.Entry.file(blobId));
+            } else {
+                subdirectories.computeIfAbsent(path.substring(0, slash), name -> new HashMap<>())
+                        .put(path.substring(slash + 1), blobId);
+            }
+        });
+        subdirectories.forEach((name, subChanges) -> {
+            Tree.Entry current = treeId == null ? null : find(treeId, name, 0);
+            String base = current != null && current.getKind() == Tree.DIRECTORY ? current.getId() : null;
+            String updated = updateDirectory(base, subChanges);
+            if (updated != null) {
+                entries.put(name, Tree.Entry.directory(updated));
+            } else if (base != null && !entries.containsKey(name)) {
+                entries.put(name, null);
+            }
+        });
+        Tree.Entry written = apply(treeId, 0, entries);
+        return written == null ? null : written.getId();
+    }
+
+    /**
+     * Apply the entry CHANGES to the tree or shard TREEID at DEPTH
+     * @return a shard entry naming the written tree, or null if it is empty
+     */
+    private Tree.Entry apply(String treeId, int depth, Map<String, Tree.Entry> changes) {
+        Tree tree = treeId == null ? null : getTree(treeId);
+        if (tree == null || !tree.isSharded()) {
+            SortedMap<String, Tree.Entry> entries = tree == null ? new TreeMap<>() : new TreeMap<>(tree.getEntries());
+            changes.forEach((name, entry) -> {
+                if (entry == null) {
+                    entries.remove(name);
+                } else {
+                    entries.put(name, entry);
+                }
+            });
+            return build(entries, depth);
+        }
+
+        Map<String, Map<String, Tree.Entry>> byShard = new HashMap<>();
+        changes.forEach((name, entry) ->
+                byShard.computeIfAbsent(shardKey(name, depth), key -> new HashMap<>()).put(name, entry));
+        SortedMap<String, Tree.Entry> shards = new TreeMap<>(tree.getEntries());
+        byShard.forEach((key, shardChanges) -> {
+            Tree.Entry shard = shards.get(key);
+            Tree.Entry updated = apply(shard == null ? null : shard.getId(), depth + 1, shardChanges);
+            if (updated == null) {
+                shards.remove(key);
+            } else {
+                shards.put(key, updated);
+            }
+        });
+        long size = shards.values().stream().mapToLong(Tree.Entry::getCount).sum();
+        if (size <= SHARD_LIMIT) {
+            SortedMap<String, Tree.Entry> entries = new TreeMap<>();
+            for (Tree.Entry shard : shards.values()) {
+                entries.putAll(listing(getTree(shard.getId())));
+            }
+            return build(entries, depth);
+        }
+        return write(shards, size);
+    }
+
+    /** Write ENTRIES as the tree or shard at DEPTH, split into shards when too large. */
+    private Tree.Entry build(SortedMap<String, Tree.Entry> entries, int depth) {
+        if (entries.isEmpty()) return null;
+        if (entries.size() <= SHARD_LIMIT || depth >= MAX_DEPTH) {
+            return write(entries, entries.size());
+        }
+        Map<String, SortedMap<String, Tree.Entry>> byShard = new TreeMap<>();
+        entries.forEach((name, entry) ->
+                byShard.computeIfAbsent(shardKey(name, depth), key -> new TreeMap<>()).put(name, entry));
+        SortedMap<String, Tree.Entry> shards = new TreeMap<>();
+        byShard.forEach((key, shardEntries) -> shards.put(key, build(shardEntries, depth + 1)));
+        return write(shards, entries.size());
+    }
+
+    private Tree.Entry write(SortedMap<String, Tree.Entry> entries, long size) {
+        byte[] content = BinaryCodec.encodeTree(new Tree(entries));
+        String treeId = sha1(content);
+        treeStore.write(treeId, content);
+        return new Tree.Entry(Tree.SHARD, treeId, size);
+    }
+
+    /** The entry NAME of the directory whose tree or shard at DEPTH is TREEID. */
+    private Tree.Entry find(String treeId, String name, int depth) {
+        Tree tree = getTree(treeId);
+        if (!tree.isSharded()) {
+            return tree.getEntries().get(name);
+        }
+        Tree.Entry shard = tree.getEntries().get(shardKey(name, depth));
+        return shard == null ? null : find(shard.getId(), name, depth + 1);
+    }
+
+    /** The entries of the directory of TREE, gathered from its shards. */
+    private SortedMap<String, Tree.Entry> listing(Tree tree) {
+        if (!tree.isSharded()) return tree.getEntries();
+        SortedMap<String, Tree.Entry> entries = new TreeMap<>();
+        for (Tree.Entry shard : tree.getEntries().values()) {
+            entries.putAll(listing(getTree(shard.getId())));
+        }
+        return entries;
+    }
+
+    private void collectFiles(String treeId, String prefix, Map<String, String> files) {
+        listing(getTree(treeId)).forEach((name, entry) -> {
+            if (entry.getKind() == Tree.FILE) {
+                files.put(prefix + name, entry.getId());
+            } else {
+                collectFiles(entry.getId(), prefix + name + "/", files);
+            }
+        });
+    }
+
+    /** Compare the trees or shards FIRST and SECOND of the directory PREFIX, either may be null. */
+    private void diff(String first, String second, String prefix, List<String> paths) {
+        if (Objects.equals(first, second)) return;
+        if (first == null || second == null) {
+            Map<String, String> files = new HashMap<>();
+            collectFiles(first == null ? second : first, prefix, files);
+            paths.addAll(files.keySet());
+            return;
+        }
+        Tree firstTree = getTree(first);
+        Tree secondTree = getTree(second);
+        if (firstTree.isSharded() && secondTree.isSharded()) {
+            // shards of the same key at the same depth hold the same names
+            TreeSet<String> keys = new TreeSet<>(firstTree.getEntries().keySet());
+            keys.addAll(secondTree.getEntries().keySet());
+            for (String key : keys) {
+                diff(idOf(firstTree.getEntries().get(key)), idOf(secondTree.getEntries().get(key)), prefix, paths);
+            }
+            return;
+        }
+        SortedMap<String, Tree.Entry> firstEntries = listing(firstTree);
+        SortedMap<String, Tree.Entry> secondEntries = listing(secondTree);
+        TreeSet<String> names = new TreeSet<>(firstEntries.keySet());
+        names.addAll(secondEntries.keySet());
+        for (String name : names) {
+            Tree.Entry firstEntry = firstEntries.get(name);
+            Tree.Entry secondEntry = secondEntries.get(name);
+            if (Objects.equals(firstEntry, secondEntry)) continue;
+            if (!Objects.equals(idOf(firstEntry, Tree.FILE), idOf(secondEntry, Tree.FILE))) {
+                paths.add(prefix + name);
+            }
+            diff(idOf(firstEntry, Tree.DIRECTORY), idOf(secondEntry, Tree.DIRECTORY), prefix + name + "/", paths);
+        }
+    }
+
+    private static String idOf(Tree.Entry entry) {
+        return entry == null ? null : entry.getId();
+    }
+
+    private static String idOf(Tree.Entry entry, byte kind) {
+        return entry == null || entry.getKind() != kind ? null : entry.getId();
+    }
+
+    /** The shard of NAME at DEPTH: the digit of its sha1 at that position. */
+    private static String shardKey(String name, int depth) {
+        return String.valueOf(sha1(name).charAt(depth));
+    }
+}
@@ -1,21 +1,30 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
 
 
@@ -31,6 +40,14 @@ class Utils {
     /** The length of a complete SHA-1 UID as a hexadecimal numeral. */
     static final int UID_LENGTH = 40;
 
+    /** Size of the buffers used when streaming file contents. */
+    static final int BUFFER_SIZE = 8192;
+
+    /** The directory of the repository, at the root of the working tree. */
+    static final String GITLET_DIR_NAME = ".gitlet";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /* SHA-1 HASH VALUES. */
 
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
@@ -47,16 +64,119 @@ class Utils {
                     throw new IllegalArgumentException("improper type to sha1");
                 }
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+            return toHex(md.digest());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Files at least this long are hashed from a memory mapping, shorter ones are read. */
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    /** The longest part of a file mapped at once. */
+    private static final long MAP_WINDOW = 64 << 20;
+
+    /** A direct read buffer per thread, reused for every file hashed on it. */
+    private static final ThreadLocal<ByteBuffer> HASH_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(64 << 10));
+
+    /** Returns the SHA-1 hash of the raw contents of FILE, the id of a
+     *  blob of them.  The digest is fed straight from the file channel,
+     *  through a memory mapping for long files and the thread's pooled
+     *  buffer for short ones, so the file need not fit in memory and is
+     *  never copied into an array.  Throws IllegalArgumentException in
+     *  case of problems. */
+    static String sha1(File file) {
+        MessageDigest md = sha1Digest();
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    md.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_WINDOW, size - position)));
+                }
+                // the file may have grown since its size was taken
+                channel.position(size);
+            }
+            ByteBuffer buffer = HASH_BUFFER.get();
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
             }
-            return result.toString();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return toHex(md.digest());
+    }
+
+    /** Returns a fresh SHA-1 MessageDigest. */
+    static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException excp) {
             throw new IllegalArgumentException("System does not support SHA-1");
         }
     }
 
+    /** Returns true if ID is a complete SHA-1 UID: UID_LENGTH lower-case
+     *  hexadecimal digits. */
+    static boolean isUid(String id) {
+        if (id == null || id.length() != UID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < UID_LENGTH; i += 1) {
+            char c = id.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the bytes of the hexadecimal numeral HEX, the inverse of
+     *  toHex. */
+    static byte[] fromHex(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) ((Character.digit(hex.charAt(2 * i), 16) << 4)
+                                | Character.digit(hex.charAt(2 * i + 1), 16));
+        }
+        return result;
+    }
+
+    /** Returns DIGEST as a lower-case hexadecimal numeral. */
+    static String toHex(byte[] digest) {
+        char[] result = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i += 1) {
+            result[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /** Returns the string written by DataOutput.writeUTF at the position of
+     *  IN and moves past it, without decoding a string of ASCII characters.
+     *  Throws BufferUnderflowException if IN ends before the string does. */
+    static String readUTF(ByteBuffer in) throws IOException {
+        int start = in.position();
+        int length = in.getShort() & 0xffff;
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] data = in.array();
+        int offset = in.arrayOffset() + in.position();
+        in.position(in.position() + length);
+        for (int i = offset; i < offset + length; i += 1) {
+            if (data[i] < 0) {
+                return new DataInputStream(new ByteArrayInputStream(data, in.arrayOffset() + start, length + 2))
+                        .readUTF();
+            }
+        }
+        return new String(data, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
     /** Returns the SHA-1 hash of the concatenation of the strings in
      *  VALS. */
     static String sha1(List<Object> vals) {
@@ -136,6 +256,33 @@ class Utils {
         }
     }
 
+    /** Write everything read from IN to FILE, creating or overwriting it
+     *  as needed, without holding the whole content in memory.  Closes IN.
+     *  Throws IllegalArgumentException in case of problems. */
+    static void writeContents(File file, InputStream in) {
+        try (InputStream source = in) {
+            if (file.isDirectory()) {
+                throw
+                    new IllegalArgumentException("cannot overwrite directory");
+            }
+            Files.copy(source, file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Copy the contents of SOURCE to TARGET, creating or overwriting it as
+     *  needed.  Throws IllegalArgumentException in case of problems. */
+    static void copyContents(File source, File target) {
+        try {
+            Files.copy(source.toPath(), target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
@@ -188,6 +335,56 @@ class Utils {
         return plainFilenamesIn(new File(dir));
     }
 
+    /** Returns a list of the paths of all plain files under the directory
+     *  DIR and its subdirectories, relative to DIR with directories separated
+     *  by '/', in lexicographic order as Java Strings.  Returns null if DIR
+     *  does not denote a directory. */
+    static List<String> plainFilePathsIn(File dir) {
+        if (!dir.isDirectory()) {
+            return null;
+        }
+        List<String> paths = new ArrayList<>();
+        collectFilePaths(dir, "", paths);
+        paths.sort(null);
+        return paths;
+    }
+
+    private static void collectFilePaths(File dir, String prefix, List<String> paths) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isFile()) {
+                paths.add(prefix + file.getName());
+            } else if (file.isDirectory()) {
+                collectFilePaths(file, prefix + file.getName() + "/", paths);
+            }
+        }
+    }
+
+    /** Create the missing parent directories of FILE.  A directory
+     *  created meanwhile by another thread is not an error. */
+    static void createParentDirs(File file) {
+        File parent = file.getParentFile();
+        if (parent == null || parent.isDirectory()) {
+            return;
+        }
+        try {
+            Files.createDirectories(parent.toPath());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException("cannot create directory " + parent);
+        }
+    }
+
+    /** Delete the parent directories of FILE that are empty, up to but
+     *  excluding ROOT.  Not to be run while another thread may be writing
+     *  under ROOT, the directory it is about to write into could go. */
+    static void deleteEmptyParents(File file, File root) {
+        for (File dir = file.getParentFile(); dir != null && !dir.equals(root); dir = dir.getParentFile()) {
+            // delete only succeeds on an empty directory
+            if (!dir.delete()) return;
+        }
+    }
+
     /* OTHER FILE UTILITIES */
 
     /** Return the concatentation of FIRST and OTHERS into a File designator,
@@ -204,6 +401,60 @@ class Utils {
         return Paths.get(first.getPath(), others).toFile();
     }
 
+    /** Return PATH, a path given from the directory ROOT, as the path of
+     *  the file it names from ROOT, with directories separated by '/' and
+     *  no "." or ".." left.  Throws a GitletException if PATH is absolute,
+     *  names a file outside ROOT or ROOT itself, or is in the repository
+     *  directory, so that no path given by the user reaches past ROOT or
+     *  into .gitlet when it is joined to a directory. */
+    static String normalizePath(File root, String path) {
+        if (isNormalPath(path)) {
+            return path;
+        }
+        try {
+            Path given = Paths.get(path);
+            if (given.isAbsolute() || path.startsWith("/")) {
+                throw error("%s is an absolute path, paths are given from the working directory.", path);
+            }
+            Path base = root.toPath().toAbsolutePath().normalize();
+            Path resolved = base.resolve(given).normalize();
+            if (!resolved.startsWith(base) || resolved.equals(base)) {
+                throw error("%s is outside the working directory.", path);
+            }
+            String normal = base.relativize(resolved).toString().replace(File.separatorChar, '/');
+            if (normal.equals(GITLET_DIR_NAME) || normal.startsWith(GITLET_DIR_NAME + "/")) {
+                throw error("%s is inside the %s directory.", path, GITLET_DIR_NAME);
+            }
+            return normal;
+        } catch (InvalidPathException excp) {
+            throw error("%s is not a valid path.", path);
+        }
+    }
+
+    /** Returns true if PATH is already a normal path from the working
+     *  directory: relative, with no empty, "." or ".." names, and outside
+     *  .gitlet. */
+    private static boolean isNormalPath(String path) {
+        if (path.isEmpty() || path.indexOf(File.separatorChar) >= 0 && File.separatorChar != '/') {
+            return false;
+        }
+        int start = 0;
+        while (true) {
+            int end = path.indexOf('/', start);
+            int length = (end < 0 ? path.length() : end) - start;
+            if (length == 0
+                    || length == 1 && path.charAt(start) == '.'
+                    || length == 2 && path.startsWith("..", start)
+                    || start == 0 && length == GITLET_DIR_NAME.length() && path.startsWith(GITLET_DIR_NAME)) {
+                return false;
+            }
+            if (end < 0) {
+                return true;
+            }
+            start = end + 1;
+        }
+    }
+
 
     /* SERIALIZATION UTILITIES */
 
@@ -220,6 +471,22 @@ class Utils {
         }
     }
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
 
 
     /* MESSAGES AND ERROR REPORTING */
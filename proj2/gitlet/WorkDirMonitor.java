@@ -0,0 +1,550 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/** The working tree monitor: an opt-in process, started by the monitor
+ *  command, that watches every directory of the working tree and logs the
+ *  path of each file or directory touched, so that a command lists and
+ *  compares only the paths touched since the last scan instead of walking
+ *  and stat-ing the whole tree.
+ *  <pre>
+ *      lock     locked by the running monitor
+ *      log      'GMON' version session (modified UTF-8), then one record per change:
+ *               kind (1 byte, PATH or COOKIE) path or cookie name (modified UTF-8)
+ *      cookies  the files commands create to learn how far the log has got
+ *      scan     'GMSC' version session offset (8 bytes) count, then count entries:
+ *               path (modified UTF-8) whether the blob id is known (1 byte) blob id (20 bytes)
+ *      dirty    'GMDT' version session offset (8 bytes) tree id (20 bytes) count, then count entries:
+ *               path (modified UTF-8) whether the blob id is known (1 byte) blob id (20 bytes)
+ *               whether the tree has the file (1 byte) its blob id there (20 bytes)
+ *  </pre>
+ *  A command creates a cookie and waits for the monitor to log it.  The
+ *  watch service signals the keys of events in the order they happened, but
+ *  a key with more events is only queued again when it is reset, possibly
+ *  behind the cookie's key; so keys are reset as soon as their events are
+ *  taken, and every key queued when a cookie is seen is logged before it.
+ *  Every change made before the command started is then logged before its
+ *  cookie.  The scan
+ *  holds the working files and the blob ids that were checked once the log
+ *  had been read up to its offset, so a file not logged past the offset is
+ *  as it was then.  Likewise the dirty paths are those status found
+ *  differing from the head tree it names, or staged, once the log had been
+ *  read up to their offset; no other path can differ from that tree unless
+ *  it is logged past the offset.  When that cannot be relied on, because no monitor is
+ *  running, the cookie is not logged in time, or the monitor started a new
+ *  session after losing events, the command walks the whole tree as it does
+ *  without a monitor.
+ */
+public class WorkDirMonitor {
+    private static final byte[] LOG_MAGIC = {'G', 'M', 'O', 'N'};
+    private static final byte[] SCAN_MAGIC = {'G', 'M', 'S', 'C'};
+    private static final byte[] DIRTY_MAGIC = {'G', 'M', 'D', 'T'};
+    private static final int VERSION = 1;
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+    private static final byte PATH = 'P';
+    private static final byte COOKIE = 'C';
+    /** How long a command waits for its cookie before walking the tree itself. */
+    private static final long COOKIE_TIMEOUT_MS = 1000;
+    /** A longer log is begun afresh in a new session, each scan is then walked once more. */
+    private static final long MAX_LOG_SIZE = 8 << 20;
+    private static final String GITLET_DIR_NAME = ".gitlet";
+
+    private final File WORK_DIR;
+    private final File LOCK_FILE;
+    private final File LOG_FILE;
+    private final File COOKIE_DIR;
+    private final File SCAN_FILE;
+    private final File DIRTY_FILE;
+
+    /** The directory each key of the running monitor watches, by key. */
+    private final Map<WatchKey, Path> watched = new HashMap<>();
+    private WatchService watcher;
+    private WatchKey cookieKey;
+
+    public WorkDirMonitor(File workDir, File monitorDir) {
+        WORK_DIR = workDir.getAbsoluteFile();
+        LOCK_FILE = join(monitorDir, "lock");
+        LOG_FILE = join(monitorDir, "log");
+        COOKIE_DIR = join(monitorDir, "cookies");
+        SCAN_FILE = join(monitorDir, "scan");
+        DIRTY_FILE = join(monitorDir, "dirty");
+    }
+
+    /**
+     * Watch the working tree until the process is killed
+     */
+    public void run() {
+        COOKIE_DIR.mkdirs();
+        try (FileChannel channel = FileChannel.open(LOCK_FILE.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                throw error("A monitor is already running.");
+            }
+            watcher = watchService;
+            watch(WORK_DIR.toPath());
+            cookieKey = COOKIE_DIR.toPath().register(watcher, ENTRY_CREATE);
+            // events of the directories registered meanwhile wait in their keys and are logged in this session
+            startSession();
+            System.out.println("Watching " + watched.size() + " directories.");
+
+            while (true) {
+                ByteArrayOutputStream records = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(records);
+                List<String> cookies = new ArrayList<>();
+                boolean overflow = logEvents(watcher.take(), out, cookies);
+                // the keys of changes made before a cookie may be queued behind its key, all
+                // keys queued are logged before it, so it follows every change made before it
+                WatchKey key;
+                while (!cookies.isEmpty() && (key = watcher.poll()) != null) {
+                    overflow |= logEvents(key, out, cookies);
+                }
+                for (String cookie : cookies) {
+                    out.writeByte(COOKIE);
+                    out.writeUTF(cookie);
+                }
+                if (overflow || LOG_FILE.length() > MAX_LOG_SIZE) {
+                    startSession();
+                }
+                append(records.toByteArray());
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Write the records of the events of a key, and reset it at once so that
+     * changes made while they are logged queue it again
+     * @param key
+     * @param out
+     * @param cookies where the names of the cookies created are added, to be logged after the changes
+     * @return true if events were lost
+     */
+    private boolean logEvents(WatchKey key, DataOutputStream out, List<String> cookies) throws IOException {
+        List<WatchEvent<?>> events = key.pollEvents();
+        Path dir = watched.get(key);
+        if (!key.reset()) {
+            watched.remove(key);
+        }
+        boolean overflow = false;
+        for (WatchEvent<?> event : events) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            Path name = (Path) event.context();
+            if (key == cookieKey) {
+                cookies.add(name.toString());
+                continue;
+            }
+            if (dir == null) continue;
+            Path path = dir.resolve(name);
+            String fileName = getFileName(path);
+            if (fileName.equals(GITLET_DIR_NAME)) continue;
+            // a directory is watched before it is logged, so its files are never logged under an old name
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                watch(path);
+            }
+            out.writeByte(PATH);
+            out.writeUTF(fileName);
+        }
+        return overflow;
+    }
+
+    /**
+     * Find the paths touched since the last scan
+     * @return what the running monitor logged, null if there is no monitor or it did not answer in time
+     */
+    public Changes getChanges() {
+        return awaitChanges(readScan());
+    }
+
+    /**
+     * Find the paths that may differ from the head tree status last recorded
+     * @return the paths recorded and those touched since, null if there is no monitor, it did
+     *         not answer in time, or nothing was recorded in its session
+     */
+    public Dirty getDirty() {
+        Dirty saved = readDirty();
+        if (saved == null) return null;
+        // read as a scan of no files, whose files are only kept if the log is of the same session
+        Changes changes = awaitChanges(new Scan(saved.changes.session, saved.changes.offset, new TreeMap<>()));
+        if (changes == null || changes.scanned == null) return null;
+        return new Dirty(changes, saved.tree, saved.paths, saved.tracked);
+    }
+
+    /**
+     * Create a cookie and wait for the monitor to log it
+     * @param scan where the last command stopped reading the log, null to read all of it
+     * @return the paths logged since, null if there is no monitor or it did not answer in time
+     */
+    private Changes awaitChanges(Scan scan) {
+        if (!isRunning()) return null;
+        String cookie = ProcessHandle.current().pid() + "-" + System.nanoTime();
+        File cookieFile = join(COOKIE_DIR, cookie);
+        try {
+            writeContents(cookieFile);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COOKIE_TIMEOUT_MS);
+            do {
+                Changes changes = readLog(scan, cookie);
+                if (changes != null) return changes;
+                Thread.sleep(1);
+            } while (System.nanoTime() < deadline);
+            return null;
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            cookieFile.delete();
+        }
+    }
+
+    /**
+     * Record the working files as of the changes, for the next command to start from
+     * @param changes
+     * @param files the working files by the blob id known to be theirs, null if none is
+     */
+    public void saveScan(Changes changes, TreeMap<String, String> files) {
+        File tmpScan = new File(SCAN_FILE.getPath() + ".tmp" + ProcessHandle.current().pid());
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmpScan.toPath()), BUFFER_SIZE))) {
+                out.write(SCAN_MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(changes.session);
+                out.writeLong(changes.offset);
+                out.writeInt(files.size());
+                for (Map.Entry<String, String> file : files.entrySet()) {
+                    out.writeUTF(file.getKey());
+                    out.writeBoolean(file.getValue() != null);
+                    if (file.getValue() != null) {
+                        out.write(fromHex(file.getValue()));
+                    }
+                }
+            }
+            Files.move(tmpScan.toPath(), SCAN_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            tmpScan.delete();
+        }
+    }
+
+    /**
+     * Record the paths that may differ from a head tree as of the changes, for the next status to start from
+     * @param changes
+     * @param tree the head tree
+     * @param paths the files that differ from it or are staged, and the files it has that are missing,
+     *              by the blob id known to be theirs or null
+     * @param tracked the blob id of each of the paths in the head tree, null for those it does not have
+     */
+    public void saveDirty(Changes changes, String tree, Map<String, String> paths, Map<String, String> tracked) {
+        File tmpDirty = new File(DIRTY_FILE.getPath() + ".tmp" + ProcessHandle.current().pid());
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmpDirty.toPath()), BUFFER_SIZE))) {
+                out.write(DIRTY_MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(changes.session);
+                out.writeLong(changes.offset);
+                out.write(fromHex(tree));
+                out.writeInt(paths.size());
+                for (Map.Entry<String, String> path : paths.entrySet()) {
+                    out.writeUTF(path.getKey());
+                    writeOptionalId(out, path.getValue());
+                    writeOptionalId(out, tracked.get(path.getKey()));
+                }
+            }
+            Files.move(tmpDirty.toPath(), DIRTY_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            tmpDirty.delete();
+        }
+    }
+
+    /** The paths logged since the last scan, up to and past the cookie of a command. */
+    public static class Changes {
+        private final String session;
+        private final long offset;
+        private final TreeMap<String, String> scanned;
+        private final Set<String> touched;
+
+        Changes(String session, long offset, TreeMap<String, String> scanned, Set<String> touched) {
+            this.session = session;
+            this.offset = offset;
+            this.scanned = scanned;
+            this.touched = touched;
+        }
+
+        /** @return the working files of the last scan by their known blob id or null, null if the tree must be walked */
+        public TreeMap<String, String> getScanned() {
+            return scanned;
+        }
+
+        /** @return the files and directories touched since the last scan */
+        public Set<String> getTouched() {
+            return touched;
+        }
+    }
+
+    /** The paths that may differ from a head tree, as status last recorded them, and those logged since. */
+    public static class Dirty {
+        private final Changes changes;
+        private final String tree;
+        private final TreeMap<String, String> paths;
+        private final Map<String, String> tracked;
+
+        Dirty(Changes changes, String tree, TreeMap<String, String> paths, Map<String, String> tracked) {
+            this.changes = changes;
+            this.tree = tree;
+            this.paths = paths;
+            this.tracked = tracked;
+        }
+
+        /** @return what the monitor logged since the paths were recorded */
+        public Changes getChanges() {
+            return changes;
+        }
+
+        /** @return the head tree the paths were recorded against */
+        public String getTree() {
+            return tree;
+        }
+
+        /** @return the paths recorded, by the blob id known to be theirs or null */
+        public TreeMap<String, String> getPaths() {
+            return paths;
+        }
+
+        /** @return the blob id in the tree of each path recorded, null for the paths it does not have */
+        public Map<String, String> getTracked() {
+            return tracked;
+        }
+    }
+
+    /** The last scan as read from its file. */
+    private static class Scan {
+        private final String session;
+        private final long offset;
+        private final TreeMap<String, String> files;
+
+        Scan(String session, long offset, TreeMap<String, String> files) {
+            this.session = session;
+            this.offset = offset;
+            this.files = files;
+        }
+    }
+
+    private boolean isRunning() {
+        if (!LOCK_FILE.exists()) return false;
+        try (FileChannel channel = FileChannel.open(LOCK_FILE.toPath(), StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) return true;
+            lock.release();
+            return false;
+        } catch (IOException | OverlappingFileLockException excp) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the log past the last scan
+     * @param scan the last scan, null if there is none
+     * @param cookie
+     * @return the changes, with no scanned files if the scan is of another session; null if the cookie is not logged yet
+     */
+    private Changes readLog(Scan scan, String cookie) {
+        try (RandomAccessFile log = new RandomAccessFile(LOG_FILE, "r")) {
+            byte[] magic = new byte[LOG_MAGIC.length];
+            log.readFully(magic);
+            if (!Arrays.equals(magic, LOG_MAGIC) || log.readInt() != VERSION) return null;
+            String session = log.readUTF();
+            boolean sameSession = scan != null && scan.session.equals(session) && scan.offset <= log.length();
+            long start = sameSession ? scan.offset : log.getFilePointer();
+            byte[] records = new byte[(int) (log.length() - start)];
+            log.seek(start);
+            log.readFully(records);
+
+            // a record still being written is left for the next command
+            Set<String> touched = new HashSet<>();
+            boolean logged = false;
+            int position = 0;
+            while (position + 3 <= records.length) {
+                int length = ((records[position + 1] & 0xff) << 8) | (records[position + 2] & 0xff);
+                if (position + 3 + length > records.length) break;
+                String name = readUTF(ByteBuffer.wrap(records, position + 1, length + 2));
+                if (records[position] == PATH) {
+                    touched.add(name);
+                } else if (name.equals(cookie)) {
+                    logged = true;
+                }
+                position += 3 + length;
+            }
+            if (!logged) return null;
+            return new Changes(session, start + position, sameSession ? scan.files : null, touched);
+        } catch (NoSuchFileException | EOFException excp) {
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private Scan readScan() {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(SCAN_FILE.toPath()));
+            byte[] magic = new byte[SCAN_MAGIC.length];
+            in.get(magic);
+            if (!Arrays.equals(magic, SCAN_MAGIC) || in.getInt() != VERSION) return null;
+            String session = readUTF(in);
+            long offset = in.getLong();
+            int count = in.getInt();
+            TreeMap<String, String> files = new TreeMap<>();
+            byte[] id = new byte[ID_LENGTH];
+            for (int i = 0; i < count; i += 1) {
+                String name = readUTF(in);
+                String blobId = null;
+                if (in.get() != 0) {
+                    in.get(id);
+                    blobId = toHex(id);
+                }
+                files.put(name, blobId);
+            }
+            return new Scan(session, offset, files);
+        } catch (NoSuchFileException | BufferUnderflowException | UTFDataFormatException excp) {
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private Dirty readDirty() {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(DIRTY_FILE.toPath()));
+            byte[] magic = new byte[DIRTY_MAGIC.length];
+            in.get(magic);
+            if (!Arrays.equals(magic, DIRTY_MAGIC) || in.getInt() != VERSION) return null;
+            String session = readUTF(in);
+            long offset = in.getLong();
+            byte[] id = new byte[ID_LENGTH];
+            in.get(id);
+            String tree = toHex(id);
+            int count = in.getInt();
+            TreeMap<String, String> paths = new TreeMap<>();
+            Map<String, String> tracked = new HashMap<>();
+            for (int i = 0; i < count; i += 1) {
+                String path = readUTF(in);
+                paths.put(path, readOptionalId(in));
+                tracked.put(path, readOptionalId(in));
+            }
+            return new Dirty(new Changes(session, offset, null, Set.of()), tree, paths, tracked);
+        } catch (NoSuchFileException | BufferUnderflowException | UTFDataFormatException excp) {
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void writeOptionalId(DataOutputStream out, String id) throws IOException {
+        out.writeBoolean(id != null);
+        if (id != null) {
+            out.write(fromHex(id));
+        }
+    }
+
+    private static String readOptionalId(ByteBuffer in) {
+        if (in.get() == 0) return null;
+        byte[] id = new byte[ID_LENGTH];
+        in.get(id);
+        return toHex(id);
+    }
+
+    /** Watch a directory and every directory below it, skipping the repository and linked directories. */
+    private void watch(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (dir.equals(WORK_DIR.toPath().resolve(GITLET_DIR_NAME))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                // a directory already watched under another name keeps its key, now for this name
+                watched.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException excp) throws IOException {
+                if (excp instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+                throw excp;
+            }
+        });
+    }
+
+    /** Begin a new log; the scans of the old session are walked again. */
+    private void startSession() throws IOException {
+        File tmpLog = new File(LOG_FILE.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpLog))) {
+            out.write(LOG_MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(UUID.randomUUID().toString());
+        }
+        Files.move(tmpLog.toPath(), LOG_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Append records in a single write, a command reading the log sees whole records or the start of the last. */
+    private void append(byte[] records) throws IOException {
+        if (records.length == 0) return;
+        try (FileOutputStream out = new FileOutputStream(LOG_FILE, true)) {
+            out.write(records);
+        }
+    }
+
+    private String getFileName(Path path) {
+        return WORK_DIR.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+    }
+}
@@ -1,51 +1,557 @@
 package gitlet;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static gitlet.Utils.*;
 
+/** The working tree: files are named by their path from the working
+ *  directory, with directories separated by '/'.  Directories are created
+ *  for the files written into them and deleted once their last file is.
+ */
 public class WorkDirService {
     private final File WORK_DIR;
-    public WorkDirService (File workDir) {
+    /** Where files are written before they are moved into the working tree, on the same file system. */
+    private final File TEMP_DIR;
+    private final StatIndex statIndex;
+    private final WorkDirMonitor monitor;
+    /** What the monitor logged when the files were last listed, null if the tree was walked without it. */
+    private WorkDirMonitor.Changes changes;
+    /** The files last listed, by the blob id known to be theirs or null, saved as the next scan. */
+    private TreeMap<String, String> scannedFiles;
+    /** What the monitor logged when the dirty paths were last read, null if they were not. */
+    private WorkDirMonitor.Changes dirtyChanges;
+    /** Whether the files or blob ids differ from the last scan, otherwise it is not written again. */
+    private boolean scanChanged;
+    /** The blob ids of the listed files that have not been touched since they were checked. */
+    private final Map<String, String> knownIds = new ConcurrentHashMap<>();
+    /** The attributes the last walk read of each file, so that they are not read again to compare it. */
+    private final Map<String, BasicFileAttributes> walked = new ConcurrentHashMap<>();
+
+    public WorkDirService (File workDir, File tempDir, StatIndex statIndex, WorkDirMonitor monitor) {
         this.WORK_DIR = workDir;
+        this.TEMP_DIR = tempDir;
+        this.statIndex = statIndex;
+        this.monitor = monitor;
     }
 
     public boolean fileExist(String fileName) {
-        return getFile(fileName).exists();
+        return getFile(fileName).isFile();
+    }
+
+    /**
+     * @param fileName a path given by the user, from the working directory
+     * @return the path of the file it names in the working tree, see {@link Utils#normalizePath}
+     */
+    public String normalize(String fileName) {
+        return normalizePath(WORK_DIR, fileName);
     }
 
     public File getFile(String fileName) {
-        return join(WORK_DIR,fileName);
+        return join(WORK_DIR,normalize(fileName));
     }
 
+    /**
+     * @param fileName
+     * @return the blob id of the file, only read and hashed when its stat changed since it was last hashed
+     */
     public String getHashedFile(String fileName) {
-        return sha1(readContentsAsString(getFile(fileName)));
+        String blobId = knownIds.get(fileName);
+        if (blobId != null) return blobId;
+        return remember(fileName, statIndex.getBlobId(getFile(fileName), fileName));
+    }
+
+    /**
+     * Hash many files at once, on the threads of the common fork-join pool
+     * @param fileNames
+     * @return the blob id of each file by path
+     */
+    public Map<String, String> getHashedFiles(Collection<String> fileNames) {
+        return fileNames.parallelStream()
+                .collect(Collectors.toConcurrentMap(fileName -> fileName, this::getHashedFile));
+    }
+
+    /**
+     * Find the files whose content differs from what is expected of them, in parallel.
+     * A file the monitor saw untouched since it was checked, or whose stat is
+     * unchanged, is compared by its recorded blob id, and one whose size differs
+     * from the expected size is changed without being read; only the others are hashed.
+     * Files listed from the dirty paths are not looked up in the stat index: those
+     * without a recorded blob id were touched since, their stat changed with them.
+     * @param fileNames existing working files
+     * @param expectedBlob the expected blob id of each file, only asked for when the sizes agree
+     * @param expectedSize the expected size of each file
+     * @return the sorted paths of the changed files
+     */
+    public List<String> getChangedFiles(Collection<String> fileNames, Function<String, String> expectedBlob,
+                                        ToLongFunction<String> expectedSize) {
+        return fileNames.parallelStream()
+                .filter(fileName -> {
+                    String known = knownIds.get(fileName);
+                    if (known != null) return !known.equals(expectedBlob.apply(fileName));
+                    BasicFileAttributes attributes = walked.get(fileName);
+                    if (dirtyChanges == null) {
+                        known = attributes != null
+                                ? statIndex.getKnownBlobId(attributes, fileName)
+                                : statIndex.getKnownBlobId(getFile(fileName), fileName);
+                        if (known != null) return !remember(fileName, known).equals(expectedBlob.apply(fileName));
+                    }
+                    File file = getFile(fileName);
+                    long size = attributes != null ? attributes.size() : file.length();
+                    if (size != expectedSize.applyAsLong(fileName)) return true;
+                    String blobId = dirtyChanges == null ? statIndex.getBlobId(file, fileName) : sha1(file);
+                    return !remember(fileName, blobId).equals(expectedBlob.apply(fileName));
+                })
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param treeId the root tree of the head commit
+     * @return the blob id of every file of that tree by path, as kept in the stat index, or null if they are not
+     */
+    public Map<String, String> getHeadBlobs(String treeId) {
+        return statIndex.getHeadBlobs(treeId);
+    }
+
+    /** Keep the blob id of every file of the head tree in the stat index, saved with it. */
+    public void recordHeadBlobs(String treeId, Map<String, String> blobs) {
+        statIndex.recordHeadBlobs(treeId, blobs);
+    }
+
+    /** Move the files kept for the head tree FROMTREE to TOTREE, by the files changed between them. */
+    public void updateHeadBlobs(String fromTree, String toTree, Map<String, String> changes) {
+        statIndex.updateHeadBlobs(fromTree, toTree, changes);
     }
 
     public void deleteFile(String fileName) {
         File file = getFile(fileName);
-        if (file != null) file.delete();
+        if (file.delete()) {
+            deleteEmptyParents(file, WORK_DIR);
+        }
+        statIndex.remove(fileName);
+        forget(fileName);
     }
 
-    public void addFile(String content, String fileName) {
-        File file = join(WORK_DIR,fileName);
+    public void addFile(InputStream content, String fileName) {
+        File file = getFile(fileName);
+        createParentDirs(file);
         writeContents(file,content);
+        statIndex.remove(fileName);
+        forget(fileName);
+    }
+
+    /**
+     * Write a file from a blob, recording its blob id in the stat index
+     * @param content the content of the blob
+     * @param fileName
+     * @param blobId
+     */
+    public void addFile(InputStream content, String fileName, String blobId) {
+        File file = getFile(fileName);
+        createParentDirs(file);
+        writeContents(file,content);
+        statIndex.record(file, fileName, blobId);
+        forget(fileName);
+    }
+
+    /**
+     * Write many files from their blobs and delete others, all of it or none.
+     * THREADS workers read the blobs and write them to temporary files.  The
+     * working tree is only changed once every file is written and nothing is
+     * in the way of any of them: the files replaced or deleted are moved aside,
+     * then the new files are moved into place.  If a move fails, everything
+     * moved is put back, so a failure leaves the working tree as it was.
+     * @param files the blob id of each file to write by path, the first failing path in this order is reported
+     * @param deleted the files to delete
+     * @param blobs opens the content of a blob
+     * @param threads the largest number of files written at once
+     */
+    public void addFiles(SortedMap<String, String> files, Collection<String> deleted,
+                         Function<String, InputStream> blobs, int threads) {
+        TEMP_DIR.mkdir();
+        // files left by a checkout that was killed are never moved anywhere, their names are free again
+        Arrays.stream(Objects.requireNonNull(TEMP_DIR.listFiles())).forEach(File::delete);
+
+        Map<String, File> written = new ConcurrentHashMap<>();
+        Map<String, Future<?>> results = new LinkedHashMap<>();
+        String failure = null;
+        int failures = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            files.forEach((fileName, blobId) -> {
+                File tmp = join(TEMP_DIR, Integer.toString(results.size()));
+                results.put(fileName, pool.submit(() -> {
+                    written.put(fileName, tmp);
+                    writeContents(tmp, blobs.apply(blobId));
+                    return null;
+                }));
+            });
+            // every write is waited for, so all failures are counted and no file is still being written
+            for (Map.Entry<String, Future<?>> result : results.entrySet()) {
+                try {
+                    result.getValue().get();
+                } catch (ExecutionException excp) {
+                    failures += 1;
+                    if (failure == null) {
+                        failure = result.getKey() + ": " + excp.getCause().getMessage();
+                    }
+                }
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            failures = files.size();
+            failure = "Interrupted.";
+        } finally {
+            pool.shutdownNow();
+        }
+        if (failure != null) {
+            written.values().forEach(File::delete);
+            throw error("Could not write %d of %d files, no file was changed. %s", failures, files.size(), failure);
+        }
+
+        List<String> blockers = getBlockers(files.keySet(), deleted);
+        if (!blockers.isEmpty()) {
+            written.values().forEach(File::delete);
+            throw error("%s is in the way, no file was changed.", blockers.get(0));
+        }
+
+        // deleted files go first, a removed file may be where a new directory goes
+        List<String> replaced = new ArrayList<>(deleted);
+        files.keySet().stream().filter(this::fileExist).forEach(replaced::add);
+        Map<String, File> movedAside = new LinkedHashMap<>();
+        List<String> movedIn = new ArrayList<>();
+        String current = null;
+        try {
+            for (String fileName : replaced) {
+                File file = getFile(fileName);
+                if (!Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS)) continue;
+                current = fileName;
+                File aside = join(TEMP_DIR, "aside" + movedAside.size());
+                move(file, aside);
+                movedAside.put(fileName, aside);
+                deleteEmptyParents(file, WORK_DIR);
+            }
+            for (String fileName : files.keySet()) {
+                current = fileName;
+                File file = getFile(fileName);
+                createParentDirs(file);
+                move(written.get(fileName), file);
+                movedIn.add(fileName);
+            }
+        } catch (IllegalArgumentException excp) {
+            restore(current, movedIn, movedAside, excp.getMessage());
+            written.values().forEach(File::delete);
+            throw error("Could not write %s, no file was changed. %s", current, excp.getMessage());
+        }
+        movedAside.values().forEach(File::delete);
+
+        for (String fileName : deleted) {
+            statIndex.remove(fileName);
+            forget(fileName);
+        }
+        files.forEach((fileName, blobId) -> {
+            statIndex.record(getFile(fileName), fileName, blobId);
+            forget(fileName);
+        });
+    }
+
+    /**
+     * Find what would be in the way of writing files once the deleted files
+     * are gone: anything but a directory where a directory goes, and anything
+     * but directories in a directory where a file goes
+     * @param fileNames the files to write
+     * @param deleted the files deleted before they are written
+     * @return the sorted paths in the way
+     */
+    public List<String> getBlockers(Collection<String> fileNames, Collection<String> deleted) {
+        Set<String> gone = new HashSet<>(deleted);
+        Set<String> dirs = new HashSet<>();
+        Set<String> blockers = new TreeSet<>();
+        for (String fileName : fileNames) {
+            for (int i = fileName.indexOf('/'); i >= 0; i = fileName.indexOf('/', i + 1)) {
+                String dir = fileName.substring(0, i);
+                Path path = getFile(dir).toPath();
+                if (dirs.add(dir) && !gone.contains(dir) && Files.exists(path, LinkOption.NOFOLLOW_LINKS)
+                        && !Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    blockers.add(dir);
+                }
+            }
+            Path path = getFile(fileName).toPath();
+            if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) continue;
+            try (Stream<Path> entries = Files.walk(path)) {
+                entries.filter(entry -> !Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))
+                        .map(entry -> fileName + "/" + path.relativize(entry).toString().replace(File.separatorChar, '/'))
+                        .filter(entry -> !gone.contains(entry))
+                        .forEach(blockers::add);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return new ArrayList<>(blockers);
     }
 
-    public List<File> getAllFiles() {
-        return Objects.requireNonNull(plainFilenamesIn(WORK_DIR))
-                .stream()
-                .map(fileName -> join(WORK_DIR,fileName))
+    /** Undo the moves of a failed addFiles, in reverse. */
+    private void restore(String failed, List<String> movedIn, Map<String, File> movedAside, String reason) {
+        try {
+            for (String fileName : movedIn) {
+                File file = getFile(fileName);
+                file.delete();
+                deleteEmptyParents(file, WORK_DIR);
+            }
+            if (failed != null) {
+                deleteEmptyParents(getFile(failed), WORK_DIR);
+            }
+            movedAside.forEach((fileName, aside) -> {
+                File file = getFile(fileName);
+                createParentDirs(file);
+                move(aside, file);
+            });
+        } catch (IllegalArgumentException excp) {
+            throw error("Could not write %s (%s), and could not restore the working tree: %s; "
+                    + "the files moved aside are in %s.", failed, reason, excp.getMessage(), TEMP_DIR);
+        }
+    }
+
+    private static void move(File source, File target) {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Write the stat index, and the scan of the files listed, keeping the blob ids learnt by this command. */
+    public void saveIndex() {
+        statIndex.save();
+        if (changes == null) return;
+        // files written by this command were touched after the log was read, the next command checks them again
+        for (Map.Entry<String, String> file : scannedFiles.entrySet()) {
+            String blobId = knownIds.get(file.getKey());
+            if (!Objects.equals(blobId, file.getValue())) {
+                file.setValue(blobId);
+                scanChanged = true;
+            }
+        }
+        if (scanChanged) {
+            monitor.saveScan(changes, scannedFiles);
+            scanChanged = false;
+        }
+    }
+
+    /**
+     * List the files of the working tree.  With a monitor running only the
+     * paths it logged since the last scan are looked at; otherwise the tree is
+     * walked, each directory listed by its own fork-join task.
+     * @return the sorted paths of all files of the working tree
+     */
+    public List<String> getAllFileNames() {
+        knownIds.clear();
+        walked.clear();
+        dirtyChanges = null;
+        changes = monitor.getChanges();
+        if (changes != null && changes.getScanned() != null) {
+            scannedFiles = changes.getScanned();
+            scanChanged = !changes.getTouched().isEmpty();
+            changes.getTouched().forEach(this::rescan);
+            scannedFiles.forEach((fileName, blobId) -> {
+                if (blobId != null) knownIds.put(fileName, blobId);
+            });
+            return new ArrayList<>(scannedFiles.keySet());
+        }
+        List<String> fileNames = ForkJoinPool.commonPool().invoke(new DirectoryWalk(WORK_DIR.toPath(), "", walked));
+        fileNames.sort(null);
+        if (changes != null) {
+            scanChanged = true;
+            scannedFiles = new TreeMap<>();
+            fileNames.forEach(fileName -> scannedFiles.put(fileName, null));
+        }
+        return fileNames;
+    }
+
+    /**
+     * With a monitor running, find the paths that may differ from the head
+     * tree status last recorded: the paths it recorded, and those touched
+     * since with the files now below them.  The blob ids recorded of the
+     * files not touched since are known without looking at the files.
+     * @return the paths and the tree they may differ from, null if the whole working tree must be listed
+     */
+    public WorkDirMonitor.Dirty getDirtyPaths() {
+        knownIds.clear();
+        walked.clear();
+        WorkDirMonitor.Dirty dirty = monitor.getDirty();
+        if (dirty == null) return null;
+        dirtyChanges = dirty.getChanges();
+        TreeMap<String, String> paths = dirty.getPaths();
+        for (String path : dirtyChanges.getTouched()) {
+            paths.put(path, null);
+            paths.subMap(path + "/", path + (char) ('/' + 1)).replaceAll((fileName, blobId) -> null);
+            listFiles(path).forEach(fileName -> paths.put(fileName, null));
+        }
+        paths.forEach((fileName, blobId) -> {
+            if (blobId != null) knownIds.put(fileName, blobId);
+        });
+        return dirty;
+    }
+
+    /**
+     * @param paths
+     * @return the sorted paths of PATHS that are working files, as getAllFileNames lists them
+     */
+    public List<String> getWorkingFiles(Collection<String> paths) {
+        return paths.stream()
+                .filter(this::isListed)
+                .sorted()
                 .collect(Collectors.toList());
     }
 
-    public void clear() {
-        getAllFiles().stream()
-                .map(File::getName)
-                .forEach(this::deleteFile);
+    /**
+     * Record the paths that may differ from the head tree TREEID, for the next
+     * status to start from, if the monitor was read to list the files
+     * @param treeId
+     * @param tracked the files that differ from it or are staged, and the files it has that are missing,
+     *                by their blob id in the tree, null for those it does not have
+     */
+    public void saveDirtyPaths(String treeId, Map<String, String> tracked) {
+        WorkDirMonitor.Changes read = dirtyChanges != null ? dirtyChanges : changes;
+        if (read == null || treeId == null) return;
+        TreeMap<String, String> known = new TreeMap<>();
+        tracked.keySet().forEach(path -> known.put(path, knownIds.get(path)));
+        monitor.saveDirty(read, treeId, known, tracked);
+    }
+
+    /** Replace what the last scan knew of a touched path, and of everything below it, with what is there now. */
+    private void rescan(String path) {
+        scannedFiles.remove(path);
+        scannedFiles.subMap(path + "/", path + (char) ('/' + 1)).clear();
+        listFiles(path).forEach(fileName -> scannedFiles.put(fileName, null));
+    }
+
+    /** The working files at PATH or below it, as getAllFileNames lists them. */
+    private List<String> listFiles(String path) {
+        if (isListed(path)) return List.of(path);
+        if (isHidden(path)) return List.of();
+        File file = getFile(path);
+        if (file.isDirectory() && !Files.isSymbolicLink(file.toPath())) {
+            return ForkJoinPool.commonPool().invoke(new DirectoryWalk(file.toPath(), path + "/", null));
+        }
+        return List.of();
+    }
+
+    /** Whether PATH is a file getAllFileNames lists: a file or a link to one, outside linked directories. */
+    private boolean isListed(String path) {
+        return !isHidden(path) && getFile(path).isFile();
+    }
+
+    /** Whether PATH is in the repository or below a linked directory, where the tree is never walked. */
+    private boolean isHidden(String path) {
+        if (path.equals(GITLET_DIR_NAME) || path.startsWith(GITLET_DIR_NAME + "/")) return true;
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+            if (Files.isSymbolicLink(getFile(path.substring(0, i)).toPath())) return true;
+        }
+        return false;
+    }
+
+    /** Drop what is known of a file this command changed. */
+    private void forget(String fileName) {
+        knownIds.remove(fileName);
+        walked.remove(fileName);
+    }
+
+    /** Keep the blob id of a file checked after the monitor log was read, for the next scan or dirty paths. */
+    private String remember(String fileName, String blobId) {
+        if (changes != null || dirtyChanges != null) {
+            knownIds.put(fileName, blobId);
+        }
+        return blobId;
+    }
+
+    /** Lists one directory, forking a walk of each of its subdirectories.
+     *  Each entry is looked at without following links, once; a link is only
+     *  followed to see whether it is a link to a file. */
+    @SuppressWarnings("serial")
+    private static class DirectoryWalk extends RecursiveTask<List<String>> {
+        private final Path dir;
+        private final String prefix;
+        /** Where the attributes of each file found are put, by path, or null. */
+        private final Map<String, BasicFileAttributes> attributes;
+
+        DirectoryWalk(Path dir, String prefix, Map<String, BasicFileAttributes> attributes) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.attributes = attributes;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<String> fileNames = new ArrayList<>();
+            List<DirectoryWalk> walks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    BasicFileAttributes stat = readAttributes(entry);
+                    if (stat == null) continue;
+                    if (stat.isRegularFile()) {
+                        fileNames.add(prefix + name);
+                        if (attributes != null) attributes.put(prefix + name, stat);
+                    } else if (stat.isDirectory() && !(prefix.isEmpty() && name.equals(GITLET_DIR_NAME))) {
+                        DirectoryWalk walk = new DirectoryWalk(entry, prefix + name + "/", attributes);
+                        walk.fork();
+                        walks.add(walk);
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException excp) {
+                // a directory that cannot be listed has no files, as for File.listFiles
+            }
+            for (DirectoryWalk walk : walks) {
+                fileNames.addAll(walk.join());
+            }
+            return fileNames;
+        }
+
+        /** @return the attributes of the entry, those of the file a link points to, or null if it is gone or a dangling link */
+        private static BasicFileAttributes readAttributes(Path entry) {
+            try {
+                BasicFileAttributes stat = Files.readAttributes(entry, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                if (!stat.isSymbolicLink()) return stat;
+                stat = Files.readAttributes(entry, BasicFileAttributes.class);
+                return stat.isRegularFile() ? stat : null;
+            } catch (IOException excp) {
+                return null;
+            }
+        }
     }
 
 }
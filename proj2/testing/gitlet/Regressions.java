@@ -0,0 +1,333 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** Regression cases for bugs found in review, each run against a fresh
+ *  repository in a temporary directory.  Commands run in a child JVM with
+ *  the repository as its working directory, several per JVM, so a case can
+ *  set up thousands of files in reasonable time.
+ *  <pre>
+ *      javac -d classes gitlet/*.java testing/gitlet/Regressions.java
+ *      java -cp classes gitlet.Regressions
+ *  </pre>
+ *  from proj2; exits with status 1 if any case fails.
+ */
+public class Regressions {
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        run("merge adding files in new directories", Regressions::mergeIntoNewDirectories);
+        run("checkout of a file over a directory with an untracked file", Regressions::checkoutFileOverDirectory);
+        run("checkout of a directory over an untracked file", Regressions::checkoutDirectoryOverFile);
+        run("checkout between a file and a directory of the same name", Regressions::checkoutFileAndDirectory);
+        run("status from the head files kept across checkouts", Regressions::statusFromKeptHeadFiles);
+        run("paths leaving the working tree", Regressions::pathsLeavingWorkingTree);
+        run("reset of the head commit after local changes", Regressions::resetHeadAfterLocalChanges);
+        run("status from the paths the monitor saw change", Regressions::statusFromMonitor);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /** Merge threads write files into the same new directories at once. */
+    private static void mergeIntoNewDirectories(File dir) {
+        write(dir, "base.txt", "base");
+        gitlet(dir, "init", "add base.txt", "commit base", "branch other");
+        write(dir, "base.txt", "master");
+        gitlet(dir, "add base.txt", "commit master", "checkout other");
+        List<String> adds = new ArrayList<>();
+        for (int i = 0; i < 1000; i += 1) {
+            String fileName = "d" + i % 200 + "/e/f" + i;
+            write(dir, fileName, "file " + i);
+            adds.add("add " + fileName);
+        }
+        adds.add("commit files");
+        adds.add("checkout master");
+        gitlet(dir, adds.toArray(new String[0]));
+
+        String merge = gitlet(dir, "merge other");
+        check(!merge.contains("Exception") && !merge.contains("cannot"), "merge failed: " + merge);
+        for (int i = 0; i < 1000; i += 1) {
+            String fileName = "d" + i % 200 + "/e/f" + i;
+            check(read(dir, fileName).equals("file " + i), fileName + " was not merged");
+        }
+        String status = gitlet(dir, "status");
+        check(status.contains("=== Modifications Not Staged For Commit ===\n\n=== Untracked Files ===\n\n"),
+                "tree differs from the merge commit: " + status);
+    }
+
+    /** On master a/x is tracked, on other a is a file; a/untracked keeps directory a. */
+    private static void checkoutFileOverDirectory(File dir) {
+        fileAndDirectoryBranches(dir);
+        write(dir, "a/untracked", "mine");
+        String checkout = gitlet(dir, "checkout other");
+        check(checkout.equals("There is an untracked file in the way; delete it, or add and commit it first.\n"),
+                "checkout was not refused: " + checkout);
+        check(read(dir, "a/x").equals("x") && read(dir, "a/untracked").equals("mine"), "working files were changed");
+        String status = gitlet(dir, "status");
+        check(status.startsWith("=== Branches ===\n*master\n"), "HEAD moved: " + status);
+        check(status.contains("=== Modifications Not Staged For Commit ===\n\n=== Untracked Files ===\na/untracked\n"),
+                "working tree differs from master: " + status);
+    }
+
+    /** On other b/y is tracked, on master b is an untracked file. */
+    private static void checkoutDirectoryOverFile(File dir) {
+        write(dir, "base.txt", "base");
+        gitlet(dir, "init", "add base.txt", "commit base", "branch other", "checkout other");
+        write(dir, "b/y", "y");
+        gitlet(dir, "add b/y", "commit b", "checkout master");
+        write(dir, "b", "mine");
+        String checkout = gitlet(dir, "checkout other");
+        check(checkout.equals("There is an untracked file in the way; delete it, or add and commit it first.\n"),
+                "checkout was not refused: " + checkout);
+        check(read(dir, "b").equals("mine"), "the untracked file was changed");
+    }
+
+    /** Without anything untracked, checkout replaces the directory by the file and back. */
+    private static void checkoutFileAndDirectory(File dir) {
+        fileAndDirectoryBranches(dir);
+        String checkout = gitlet(dir, "checkout other");
+        check(checkout.isEmpty() && read(dir, "a").equals("a"), "checkout of other failed: " + checkout);
+        checkout = gitlet(dir, "checkout master");
+        check(checkout.isEmpty() && read(dir, "a/x").equals("x"), "checkout of master failed: " + checkout);
+    }
+
+    /** Checkout moves the head files kept by status to the new head; status must not change for it. */
+    private static void statusFromKeptHeadFiles(File dir) {
+        write(dir, "a", "a");
+        write(dir, "d/b", "b");
+        gitlet(dir, "init", "add a", "add d/b", "commit ab", "status", "branch other", "checkout other", "rm a");
+        write(dir, "d/c", "c");
+        write(dir, "d/b", "b2");
+        gitlet(dir, "add d/c", "add d/b", "commit bc", "status", "checkout master", "checkout other", "checkout master");
+        write(dir, "d/b", "changed");
+        write(dir, "e", "untracked");
+        String kept = gitlet(dir, "status");
+        check(kept.contains("=== Modifications Not Staged For Commit ===\nd/b (modified)\n\n=== Untracked Files ===\ne\n"),
+                "wrong status: " + kept);
+        check(new File(dir, ".gitlet/index.head").delete(), "no head files were kept");
+        String decoded = gitlet(dir, "status");
+        check(kept.equals(decoded), "status differs from the trees: " + kept + " / " + decoded);
+    }
+
+    /** A path is taken from the working directory, and nothing reaches outside it or into .gitlet. */
+    private static void pathsLeavingWorkingTree(File dir) {
+        File repo = new File(dir, "w/a/b");
+        write(repo, "foo", "mine");
+        write(dir, "foo", "outside");
+        gitlet(repo, "init", "add foo", "commit foo");
+        String add = gitlet(repo, "add ../../../foo");
+        check(add.equals("../../../foo is outside the working directory.\n"),
+                "a path outside was not refused: " + add);
+        for (String command : new String[] {"add " + new File(repo, "foo").getAbsolutePath(), "add .gitlet/HEAD",
+                "rm ../../../foo", "checkout -- ../foo"}) {
+            String refused = gitlet(repo, command);
+            check(refused.endsWith(" directory.\n") && !refused.contains("Exception"), command + ": " + refused);
+        }
+        check(read(repo, "foo").equals("mine") && read(dir, "foo").equals("outside"), "a file was changed");
+
+        // a path through directories that do not exist back into the working tree names the file there
+        write(repo, "foo", "changed");
+        String staged = gitlet(repo, "add c/d/../../../b/foo", "status");
+        check(staged.startsWith("=== Branches ===\n*master\n\n=== Staged Files ===\nfoo\n\n"), "foo was not staged: " + staged);
+        List<String> stagingArea = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(new File(repo, ".gitlet/staging_area").toPath())) {
+            paths.sorted().forEach(path -> stagingArea.add(repo.toPath().relativize(path).toString()));
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+        check(stagingArea.equals(List.of(".gitlet/staging_area", ".gitlet/staging_area/addition",
+                ".gitlet/staging_area/addition/foo", ".gitlet/staging_area/removal")),
+                "the staging area holds " + stagingArea);
+    }
+
+    /** Reset and checkout bring back every tracked file, also those the two commits have alike. */
+    private static void resetHeadAfterLocalChanges(File dir) {
+        write(dir, "a", "a");
+        write(dir, "b", "b");
+        write(dir, "d/c", "c");
+        gitlet(dir, "init", "add a", "add b", "add d/c", "commit abc", "branch other");
+        String head = gitlet(dir, "log").split("\n")[1].substring("commit ".length());
+        write(dir, "a", "edited");
+        new File(dir, "b").delete();
+        new File(dir, "d/c").delete();
+        write(dir, "u", "untracked");
+        String reset = gitlet(dir, "reset " + head);
+        check(reset.isEmpty(), "reset failed: " + reset);
+        check(read(dir, "a").equals("a") && read(dir, "b").equals("b") && read(dir, "d/c").equals("c"),
+                "the working files were not reset");
+        check(read(dir, "u").equals("untracked"), "the untracked file was changed");
+
+        write(dir, "a", "edited");
+        new File(dir, "b").delete();
+        String checkout = gitlet(dir, "checkout other");
+        check(checkout.isEmpty() && read(dir, "a").equals("a") && read(dir, "b").equals("b"),
+                "checkout did not restore the files: " + checkout);
+        String status = gitlet(dir, "status");
+        check(status.contains("=== Modifications Not Staged For Commit ===\n\n=== Untracked Files ===\nu\n"),
+                "working tree differs from other: " + status);
+    }
+
+    /** Each status started from the dirty paths of the last one lists what a walk of the tree does. */
+    private static void statusFromMonitor(File dir) throws IOException, InterruptedException {
+        write(dir, "a", "a");
+        write(dir, "d/b", "b");
+        write(dir, "d/e/c", "c");
+        List<String> commands = new ArrayList<>(List.of("init", "add a", "add d/b", "add d/e/c"));
+        for (int i = 0; i < 300; i += 1) {
+            write(dir, "big/f" + i, "file " + i);
+            commands.add("add big/f" + i);
+        }
+        commands.add("commit base");
+        commands.add("branch other");
+        gitlet(dir, commands.toArray(new String[0]));
+        Process monitor = new ProcessBuilder(System.getProperty("java.home") + "/bin/java",
+                "-cp", System.getProperty("java.class.path"), "-Duser.dir=" + dir.getAbsolutePath(),
+                Main.class.getName(), "monitor")
+                .directory(dir).redirectErrorStream(true).start();
+        try {
+            String started = new String(monitor.getInputStream().readNBytes("Watching".length()), StandardCharsets.UTF_8);
+            check(started.equals("Watching"), "the monitor did not start: " + started);
+            File dirty = new File(dir, ".gitlet/monitor/dirty");
+            gitlet(dir, "status");
+            check(dirty.isFile(), "status did not record the dirty paths");
+
+            List<Runnable> steps = List.of(
+                () -> write(dir, "a", "edited"),
+                () -> write(dir, "a", "a"),
+                () -> write(dir, "big/f7", "edited 7"),
+                () -> delete(new File(dir, "d")),
+                () -> {
+                    write(dir, "d/e/c", "c");
+                    write(dir, "d/new", "new");
+                },
+                () -> gitlet(dir, "add d/new", "rm big/f3"),
+                () -> gitlet(dir, "add big/f7", "commit more"),
+                () -> gitlet(dir, "checkout other"),
+                () -> write(dir, "big/f9", "edited 9"),
+                () -> check(new File(dir, "d").renameTo(new File(dir, "moved")), "d was not moved"),
+                () -> gitlet(dir, "rm a", "reset " + gitlet(dir, "log").split("\n")[1].substring("commit ".length())));
+            for (int i = 0; i < steps.size(); i += 1) {
+                steps.get(i).run();
+                String fromMonitor = gitlet(dir, "status");
+                // the same status from a walk of the tree, the dirty paths recorded above are kept for the next step
+                byte[] recorded = Files.readAllBytes(dirty.toPath());
+                check(dirty.delete(), "the dirty paths could not be deleted");
+                String walked = gitlet(dir, "status");
+                Files.write(dirty.toPath(), recorded);
+                check(fromMonitor.equals(walked), "step " + i + ": the monitor gave\n" + fromMonitor
+                        + "\nthe walk gave\n" + walked);
+            }
+        } finally {
+            monitor.destroy();
+            monitor.waitFor();
+        }
+    }
+
+    /** Master tracks a/x, branch other tracks a file a instead; master is checked out. */
+    private static void fileAndDirectoryBranches(File dir) {
+        write(dir, "a/x", "x");
+        gitlet(dir, "init", "add a/x", "commit x", "branch other", "checkout other", "rm a/x");
+        write(dir, "a", "a");
+        gitlet(dir, "add a", "commit a", "checkout master");
+    }
+
+    /**
+     * Run commands in one child JVM, each line a command with operands separated by spaces
+     * @return everything the commands printed
+     */
+    private static String gitlet(File dir, String... commands) {
+        try {
+            Process process = new ProcessBuilder(System.getProperty("java.home") + "/bin/java",
+                    "-cp", System.getProperty("java.class.path"), "-Duser.dir=" + dir.getAbsolutePath(),
+                    Batch.class.getName())
+                    .directory(dir).redirectErrorStream(true).start();
+            try (OutputStream in = process.getOutputStream()) {
+                in.write(String.join("\n", commands).getBytes(StandardCharsets.UTF_8));
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream output = process.getInputStream()) {
+                output.transferTo(out);
+            }
+            process.waitFor();
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        } catch (InterruptedException excp) {
+            throw new IllegalStateException(excp);
+        }
+    }
+
+    /** Runs the commands read from stdin, one per line; a command that exits ends the batch. */
+    public static class Batch {
+        public static void main(String[] args) throws IOException {
+            String commands = new String(System.in.readAllBytes(), StandardCharsets.UTF_8);
+            for (String command : commands.split("\n")) {
+                Main.main(command.split(" "));
+            }
+        }
+    }
+
+    private interface Case {
+        void run(File dir) throws Exception;
+    }
+
+    private static void run(String name, Case test) throws Exception {
+        File dir = Files.createTempDirectory("gitlet-regression").toFile();
+        try {
+            test.run(dir);
+            System.out.println("PASS " + name);
+        } catch (AssertionError excp) {
+            failures += 1;
+            System.out.println("FAIL " + name + ": " + excp.getMessage());
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static void write(File dir, String fileName, String content) {
+        File file = new File(dir, fileName);
+        file.getParentFile().mkdirs();
+        try {
+            Files.writeString(file.toPath(), content);
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+    }
+
+    private static void delete(File file) {
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+    }
+
+    private static String read(File dir, String fileName) {
+        try {
+            return Files.readString(new File(dir, fileName).toPath());
+        } catch (IOException excp) {
+            return "<" + excp.getMessage() + ">";
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/** Round trips through the formats objects are stored in, each run against
+ *  fresh stores in a temporary directory, in this JVM.  Every case also
+ *  reads what the formats before it left on disk.
+ *  <pre>
+ *      javac -d classes gitlet/*.java testing/gitlet/StorageFormats.java
+ *      java -cp classes gitlet.StorageFormats
+ *  </pre>
+ *  from proj2; exits with status 1 if any case fails.
+ */
+public class StorageFormats {
+    private static final byte[] MAGIC = {0, 'g', 'l', 'o'};
+    /** A commit of "a.txt" and "dir/b.txt" with one parent, as Java serialization
+     *  wrote it before the binary format, by the Commit class of that time. */
+    private static final String SERIALIZED_COMMIT =
+            "aced00057372000d6769746c65742e436f6d6d697472d199a47fc563210200064c0008636f6d6d697449647400124c6a"
+            + "6176612f6c616e672f537472696e673b4c00076d65737361676571007e00014c0006706172656e7471007e00014c000c"
+            + "7365636f6e64506172656e7471007e00014c000974696d657374616d707400104c6a6176612f7574696c2f446174653b"
+            + "4c000c747261636b6564426c6f627374000f4c6a6176612f7574696c2f4d61703b787074002862353137356264346131"
+            + "64386336666563666638316639306433313437636331313038343539323774000a6f6c6420636f6d6d69747400286438"
+            + "6664333964306262646432646366333232643862313133393061346335383235623131343935707372000e6a6176612e"
+            + "7574696c2e44617465686a81014b59741903000078707708000000e8d4a5100078737200116a6176612e7574696c2e48"
+            + "6173684d61700507dac1c31660d103000246000a6c6f6164466163746f724900097468726573686f6c6478703f400000"
+            + "0000000c77080000001000000002740005612e7478747400283836663765343337666161356137666365313564316464"
+            + "63623965616561656133373736363762387400096469722f622e74787474002865396437316635656537633932643664"
+            + "63396539326666646164313762386264343934313866393878";
+    private static final String SERIALIZED_COMMIT_ID = "b5175bd4a1d8c6fecff81f90d3147cc110845927";
+    /** The branch "master", serialized by the Branch class of that time. */
+    private static final String SERIALIZED_BRANCH =
+            "aced00057372000d6769746c65742e4272616e6368c0ed93d5d258ce5e0200024c000a6272616e63684e616d65740012"
+            + "4c6a6176612f6c616e672f537472696e673b4c0008636f6d6d6974496471007e000178707400066d6173746572740028"
+            + "31316636616438656335326132393834616261616664376333623531363530333738356332303732";
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        run("compressed objects and plain objects written before them", StorageFormats::compressedObjects);
+        run("packs and their indexes", StorageFormats::packs);
+        run("deltas and their chains", StorageFormats::deltas);
+        run("chunked files and their manifests", StorageFormats::chunks);
+        run("binary commits, trees and branches, and serialized ones", StorageFormats::codec);
+        run("trees sharded above SHARD_LIMIT entries", StorageFormats::shardedTrees);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /** Objects are written as a deflated frame; plain files without the magic are read as they are. */
+    private static void compressedObjects(File dir) {
+        ObjectStore store = store(dir, "blobs", ObjectStore.TYPE_BLOB, new PackStore(new File(dir, "packs")));
+        byte[] content = text(100_000, 1);
+        String id = Utils.sha1((Object) content);
+        store.write(id, content);
+        byte[] frame = readFile(looseFile(dir, id));
+        check(Arrays.equals(Arrays.copyOf(frame, MAGIC.length), MAGIC), "no magic at the start of the frame");
+        check(frame[MAGIC.length] == ObjectStore.TYPE_BLOB, "wrong type " + frame[MAGIC.length]);
+        check(ByteBuffer.wrap(frame, MAGIC.length + 1, Long.BYTES).getLong() == content.length,
+                "the header does not hold the length");
+        check(frame.length < content.length / 2, "the frame is not compressed: " + frame.length + " bytes");
+        checkObject(store, id, ObjectStore.TYPE_BLOB, content);
+
+        // streamed writes hash and compress in one pass, to the same id
+        byte[] streamed = text(300_000, 2);
+        String streamedId = store.write(streamed.length, new ByteArrayInputStream(streamed));
+        check(streamedId.equals(Utils.sha1((Object) streamed)), "the streamed id is not the sha1 of the content");
+        checkObject(store, streamedId, ObjectStore.TYPE_BLOB, streamed);
+        String emptyId = store.write(0, new ByteArrayInputStream(new byte[0]));
+        checkObject(store, emptyId, ObjectStore.TYPE_BLOB, new byte[0]);
+
+        check(store.size(Utils.sha1("missing")) == -1 && store.open(Utils.sha1("missing")) == null,
+                "a missing object was found");
+
+        // a repository from before compression holds the raw content, in the flat layout
+        // or in the fan-out layout, and has no filter yet
+        File old = new File(dir, "old");
+        byte[] flat = text(5_000, 3);
+        String flatId = Utils.sha1((Object) flat);
+        writeFile(new File(old, "blobs/" + flatId), flat);
+        byte[] fannedOut = text(5_000, 4);
+        String fannedOutId = Utils.sha1((Object) fannedOut);
+        writeFile(looseFile(old, fannedOutId), fannedOut);
+        ObjectStore oldStore = store(old, "blobs", ObjectStore.TYPE_BLOB, new PackStore(new File(old, "packs")));
+        checkObject(oldStore, flatId, ObjectStore.TYPE_BLOB, flat);
+        checkObject(oldStore, fannedOutId, ObjectStore.TYPE_BLOB, fannedOut);
+        check(oldStore.migrateLayout() == 1 && looseFile(old, flatId).isFile(), "the flat object was not moved");
+        checkObject(oldStore, flatId, ObjectStore.TYPE_BLOB, flat);
+        check(Arrays.equals(readFile(looseFile(old, flatId)), flat), "the moved object was rewritten");
+    }
+
+    /** Packed objects read as loose ones did, by type, next to loose objects and across repacks. */
+    private static void packs(File dir) {
+        PackStore packs = new PackStore(new File(dir, "packs"));
+        ObjectStore blobs = store(dir, "blobs", ObjectStore.TYPE_BLOB, packs);
+        ObjectStore commits = store(dir, "commits", ObjectStore.TYPE_COMMIT, packs);
+        Map<String, byte[]> blobContents = new TreeMap<>();
+        Map<String, byte[]> commitContents = new TreeMap<>();
+        for (int i = 0; i < 200; i += 1) {
+            byte[] content = text(i * 37, i);
+            String id = Utils.sha1((Object) content);
+            blobs.write(id, content);
+            blobContents.put(id, content);
+            byte[] commit = ("commit " + i).getBytes(StandardCharsets.UTF_8);
+            String commitId = Utils.sha1((Object) commit);
+            commits.write(commitId, commit);
+            commitContents.put(commitId, commit);
+        }
+        // a plain object from before compression is compressed into the pack
+        byte[] plain = text(20_000, 1000);
+        String plainId = Utils.sha1((Object) plain);
+        writeFile(new File(dir, "blobs/" + plainId), plain);
+        blobs.rebuildFilter();
+        blobContents.put(plainId, plain);
+
+        packs.repack(List.of(blobs, commits));
+        check(blobs.looseIds().isEmpty() && commits.looseIds().isEmpty(), "loose objects were left after the repack");
+        check(!new File(dir, "blobs/" + plainId).exists(), "the plain object was left after the repack");
+        check(packFiles(dir).size() == 2, "the pack directory holds " + packFiles(dir));
+        checkObjects(blobs, ObjectStore.TYPE_BLOB, blobContents);
+        checkObjects(commits, ObjectStore.TYPE_COMMIT, commitContents);
+        String someBlob = blobContents.keySet().iterator().next();
+        check(!packs.contains(someBlob, ObjectStore.TYPE_COMMIT) && commits.open(someBlob) == null,
+                "a blob was found among the commits");
+        check(!blobs.contains(Utils.sha1("missing")) && blobs.open(Utils.sha1("missing")) == null,
+                "a missing object was found in the pack");
+
+        // new objects are loose next to the pack, and the next repack takes both in
+        byte[] loose = text(10_000, 2000);
+        String looseId = Utils.sha1((Object) loose);
+        blobs.write(looseId, loose);
+        blobContents.put(looseId, loose);
+        check(blobs.looseIds().equals(List.of(looseId)), "the new object is not loose");
+        checkObjects(blobs, ObjectStore.TYPE_BLOB, blobContents);
+        packs.repack(List.of(blobs, commits));
+        check(blobs.looseIds().isEmpty() && packFiles(dir).size() == 2, "the old pack was kept: " + packFiles(dir));
+        checkObjects(blobs, ObjectStore.TYPE_BLOB, blobContents);
+
+        // what a later process sees, and what a repack dropping objects leaves
+        PackStore reopened = new PackStore(new File(dir, "packs"));
+        ObjectStore reopenedBlobs = store(dir, "blobs", ObjectStore.TYPE_BLOB, reopened);
+        ObjectStore reopenedCommits = store(dir, "commits", ObjectStore.TYPE_COMMIT, reopened);
+        checkObjects(reopenedBlobs, ObjectStore.TYPE_BLOB, blobContents);
+        checkObjects(reopenedCommits, ObjectStore.TYPE_COMMIT, commitContents);
+        reopened.repack(List.of(reopenedBlobs, reopenedCommits),
+                (store, id) -> store == reopenedCommits || !id.equals(looseId));
+        reopenedBlobs.rebuildFilter();
+        blobContents.remove(looseId);
+        checkObjects(reopenedBlobs, ObjectStore.TYPE_BLOB, blobContents);
+        checkObjects(reopenedCommits, ObjectStore.TYPE_COMMIT, commitContents);
+        check(!reopenedBlobs.contains(looseId) && reopenedBlobs.open(looseId) == null, "the dropped object is still there");
+        reopened.close();
+        packs.close();
+    }
+
+    /** Deltas rebuild their target, and chains stop at MAX_DELTA_DEPTH whether loose or packed. */
+    private static void deltas(File dir) {
+        byte[] base = text(50_000, 1);
+        byte[][] targets = {
+            edit(base, 0, "inserted at the start"), edit(base, 25_000, "in the middle"),
+            Arrays.copyOf(base, 49_000), Arrays.copyOfRange(base, 1_000, 50_000), base, new byte[0], text(5_000, 2),
+        };
+        String baseId = Utils.sha1((Object) base);
+        for (byte[] target : targets) {
+            byte[] delta = Delta.encode(baseId, 3, base, target);
+            check(Arrays.equals(Delta.apply(base, delta), target), "the delta did not rebuild its target");
+            check(Delta.baseOf(delta).equals(baseId) && Delta.depthOf(delta) == 3, "the delta header was not kept");
+        }
+        check(Arrays.equals(Delta.apply(new byte[0], Delta.encode(Utils.sha1(""), 1, new byte[0], base)), base),
+                "a delta against an empty base did not rebuild its target");
+
+        PackStore packs = new PackStore(new File(dir, "packs"));
+        ObjectStore store = store(dir, "blobs", ObjectStore.TYPE_BLOB, packs);
+        BlobService blobs = new BlobService(store, new LruCache<>(0, content -> content.length));
+        File file = new File(dir, "file.txt");
+        List<String> ids = new ArrayList<>();
+        List<byte[]> versions = new ArrayList<>();
+        byte[] version = base;
+        for (int i = 0; i <= BlobService.MAX_DELTA_DEPTH + 2; i += 1) {
+            writeFile(file, version);
+            ids.add(blobs.saveBlob(file, ids.isEmpty() ? null : ids.get(ids.size() - 1)));
+            versions.add(version);
+            version = edit(version, 1_000 * (i + 1), "version " + (i + 1));
+        }
+        // the first version and the one after a full chain are whole, the others deltas one deeper each time
+        for (int i = 0; i < ids.size(); i += 1) {
+            int depth = i % (BlobService.MAX_DELTA_DEPTH + 1);
+            check(deltaDepth(store, ids.get(i)) == depth, "version " + i + " is at depth "
+                    + deltaDepth(store, ids.get(i)) + ", not " + depth);
+            if (depth > 0) {
+                check(blobs.getReferences(ids.get(i)).equals(List.of(ids.get(i - 1))), "version " + i
+                        + " does not refer to its base");
+            }
+        }
+        checkVersions(new BlobService(store, new LruCache<>(0, content -> content.length)), ids, versions);
+        packs.repack(List.of(store));
+        checkVersions(new BlobService(store, new LruCache<>(0, content -> content.length)), ids, versions);
+        check(deltaDepth(store, ids.get(BlobService.MAX_DELTA_DEPTH)) == BlobService.MAX_DELTA_DEPTH,
+                "the repack changed how the deltas are stored");
+        packs.close();
+    }
+
+    /** Files above CHUNKING_THRESHOLD are rebuilt from their chunks, which versions share. */
+    private static void chunks(File dir) {
+        PackStore packs = new PackStore(new File(dir, "packs"));
+        ObjectStore store = store(dir, "blobs", ObjectStore.TYPE_BLOB, packs);
+        BlobService blobs = new BlobService(store, new LruCache<>(0, content -> content.length));
+        File file = new File(dir, "large.bin");
+        byte[] atThreshold = new byte[(int) BlobService.CHUNKING_THRESHOLD];
+        new Random(1).nextBytes(atThreshold);
+        writeFile(file, atThreshold);
+        String wholeId = blobs.saveBlob(file);
+        check(store.open(wholeId).getType() == ObjectStore.TYPE_BLOB && blobs.getReferences(wholeId).isEmpty(),
+                "a file at the threshold was chunked");
+
+        byte[] content = new byte[3 * (int) BlobService.CHUNKING_THRESHOLD + 12_345];
+        new Random(2).nextBytes(content);
+        writeFile(file, content);
+        String id = blobs.saveBlob(file);
+        check(store.open(id).getType() == ObjectStore.TYPE_CHUNKED, "the large file was not chunked");
+        List<String> chunkIds = blobs.getReferences(id);
+        long total = 0;
+        for (int i = 0; i < chunkIds.size(); i += 1) {
+            long size = store.size(chunkIds.get(i));
+            check(size <= Chunker.MAX_CHUNK && (size >= Chunker.MIN_CHUNK || i == chunkIds.size() - 1),
+                    "chunk " + i + " has " + size + " bytes");
+            total += size;
+        }
+        check(total == content.length, "the chunks hold " + total + " bytes, not " + content.length);
+        checkVersions(blobs, List.of(id), List.of(content));
+
+        // an edit in the middle, saved against the first version, shares all chunks but those around it
+        byte[] edited = edit(content, content.length / 2, "an edit in the middle of the file");
+        writeFile(file, edited);
+        String editedId = blobs.saveBlob(file, id);
+        List<String> editedChunkIds = blobs.getReferences(editedId);
+        long shared = editedChunkIds.stream().filter(chunkIds::contains).count();
+        check(store.open(editedId).getType() == ObjectStore.TYPE_CHUNKED, "the edited file was not chunked");
+        check(shared >= chunkIds.size() - 3, "only " + shared + " of " + chunkIds.size() + " chunks are shared");
+        checkVersions(blobs, List.of(id, editedId), List.of(content, edited));
+
+        packs.repack(List.of(store));
+        checkVersions(new BlobService(store, new LruCache<>(0, cached -> cached.length)),
+                List.of(wholeId, id, editedId), List.of(atThreshold, content, edited));
+        packs.close();
+    }
+
+    /** Both commit versions and the other records decode to what was encoded; serialized ones still decode. */
+    private static void codec(File dir) {
+        Commit withTree = new Commit("with a tree", new Date(1_700_000_000_123L), Utils.sha1("parent"),
+                Utils.sha1("second parent"), Utils.sha1("tree"));
+        byte[] encoded = BinaryCodec.encodeCommit(withTree);
+        Commit decoded = BinaryCodec.decodeCommit(encoded);
+        checkCommit(decoded, withTree);
+        check(decoded.getTree().equals(withTree.getTree()), "the tree id was not kept");
+        checkMeta(BinaryCodec.decodeCommitMeta(encoded), withTree);
+
+        // a commit from before trees carries its files, in version 1
+        Map<String, String> files = new HashMap<>();
+        files.put("a.txt", Utils.sha1("a"));
+        files.put("dir/b.txt", Utils.sha1("b"));
+        files.put("unicode \u00e9\u4e2d.txt", Utils.sha1("c"));
+        Commit withFiles = new Commit(Utils.sha1("files"), "with files", new Date(1_000L), null, null, null, files);
+        encoded = BinaryCodec.encodeCommit(withFiles);
+        check(encoded[1] < BinaryCodec.encodeCommit(withTree)[1], "the commit without tree was not encoded in version 1");
+        decoded = BinaryCodec.decodeCommit(encoded);
+        checkCommit(decoded, withFiles);
+        check(decoded.getTree() == null && decoded.getTrackedBlobs().equals(files), "the files were not kept");
+        checkMeta(BinaryCodec.decodeCommitMeta(encoded), withFiles);
+        Map<String, String> reordered = new TreeMap<>(Comparator.reverseOrder());
+        reordered.putAll(files);
+        check(Arrays.equals(BinaryCodec.encodeCommit(
+                new Commit(Utils.sha1("files"), "with files", new Date(1_000L), null, null, null, reordered)), encoded),
+                "the files are not encoded in a fixed order");
+
+        // commits and branches serialized before the binary format
+        byte[] serialized = Utils.fromHex(SERIALIZED_COMMIT);
+        check(serialized[0] == (byte) 0xAC, "the serialized commit does not start as a serialization stream");
+        Commit old = BinaryCodec.decodeCommit(serialized);
+        check(old.getCommitId().equals(SERIALIZED_COMMIT_ID) && old.getMessage().equals("old commit")
+                && old.getParent().equals(Utils.sha1("parent")) && old.getSecondParent() == null
+                && old.getTimestamp().getTime() == 1_000_000_000_000L && old.getTree() == null,
+                "the serialized commit was not read");
+        check(old.getTrackedBlobs().equals(Map.of("a.txt", Utils.sha1("a"), "dir/b.txt", Utils.sha1("b"))),
+                "the files of the serialized commit were not read");
+        checkMeta(BinaryCodec.decodeCommitMeta(serialized), old);
+        checkCommit(BinaryCodec.decodeCommit(BinaryCodec.encodeCommit(old)), old);
+        Branch oldBranch = BinaryCodec.decodeBranch(Utils.fromHex(SERIALIZED_BRANCH));
+        check(oldBranch.getBranchName().equals("master") && oldBranch.getCommitId().equals(Utils.sha1("x")),
+                "the serialized branch was not read");
+
+        Branch branch = BinaryCodec.decodeBranch(BinaryCodec.encodeBranch(new Branch("feature/x", Utils.sha1("y"))));
+        check(branch.getBranchName().equals("feature/x") && branch.getCommitId().equals(Utils.sha1("y")),
+                "the branch was not kept");
+
+        SortedMap<String, Tree.Entry> entries = new TreeMap<>();
+        entries.put("file.txt", Tree.Entry.file(Utils.sha1("file")));
+        entries.put("dir", Tree.Entry.directory(Utils.sha1("dir")));
+        entries.put("shard", new Tree.Entry(Tree.SHARD, Utils.sha1("shard"), 300));
+        Tree tree = BinaryCodec.decodeTree(BinaryCodec.encodeTree(new Tree(entries)));
+        check(tree.getEntries().equals(entries), "the tree entries were not kept");
+        check(tree.getEntries().get("shard").getCount() == 300, "the shard count was not kept");
+        check(BinaryCodec.decodeTree(BinaryCodec.encodeTree(new Tree(new TreeMap<>()))).getEntries().isEmpty(),
+                "the empty tree was not kept");
+        try {
+            BinaryCodec.decodeCommit(Arrays.copyOf(encoded, encoded.length - 5));
+            check(false, "a truncated commit was decoded");
+        } catch (GitletException excp) {
+            check(excp.getMessage().equals("Corrupted commit."), "a truncated commit gave " + excp.getMessage());
+        }
+    }
+
+    /** Large directories are split into shards, and a tree is the same however its files got there. */
+    private static void shardedTrees(File dir) {
+        TreeService trees = new TreeService(store(dir, "trees", ObjectStore.TYPE_TREE,
+                new PackStore(new File(dir, "packs"))));
+        Map<String, String> files = new HashMap<>();
+        for (int i = 0; i < 5_000; i += 1) {
+            files.put("big/file" + i + ".txt", Utils.sha1("big" + i));
+        }
+        for (int i = 0; i < TreeService.SHARD_LIMIT + 44; i += 1) {
+            files.put("root" + i + ".txt", Utils.sha1("root" + i));
+        }
+        files.put("big/nested/deeper/leaf.txt", Utils.sha1("leaf"));
+        String treeId = trees.update(null, files);
+        Tree root = trees.getTree(treeId);
+        check(root.isSharded() && root.size() == TreeService.SHARD_LIMIT + 45, "the root has " + root.size()
+                + " entries, sharded: " + root.isSharded());
+        check(trees.getFiles(treeId).equals(files), "the files of the sharded tree were not kept");
+        for (String path : List.of("big/file0.txt", "big/file4999.txt", "root299.txt", "big/nested/deeper/leaf.txt")) {
+            check(files.get(path).equals(trees.findFile(treeId, path)), path + " was not found");
+        }
+        check(trees.findFile(treeId, "big/file5000.txt") == null && trees.findFile(treeId, "big") == null
+                && trees.findFile(treeId, "big/nested/deeper") == null, "a missing file was found");
+        check(trees.diff(null, treeId).equals(new ArrayList<>(new TreeSet<>(files.keySet()))),
+                "the diff from the empty tree is not every file");
+
+        // one change rewrites one path through the shards, and diff finds only it
+        Map<String, String> change = new HashMap<>();
+        change.put("big/file1234.txt", Utils.sha1("changed"));
+        String changedId = trees.update(treeId, change);
+        check(trees.diff(treeId, changedId).equals(List.of("big/file1234.txt")), "the diff is "
+                + trees.diff(treeId, changedId));
+        files.putAll(change);
+        check(changedId.equals(trees.update(null, files)), "the updated tree differs from the tree written at once");
+
+        // removing files below the limit folds the shards back into one tree
+        Map<String, String> removals = new HashMap<>();
+        for (String path : files.keySet()) {
+            if (path.startsWith("big/file") || (path.startsWith("root") && !path.equals("root7.txt"))) {
+                removals.put(path, null);
+            }
+        }
+        String prunedId = trees.update(changedId, removals);
+        files.keySet().removeAll(removals.keySet());
+        check(!trees.getTree(prunedId).isSharded() && trees.getFiles(prunedId).equals(files),
+                "the pruned tree is " + trees.getFiles(prunedId).keySet());
+        check(prunedId.equals(trees.update(null, files)), "the pruned tree differs from the tree written at once");
+        check(trees.diff(prunedId, changedId).size() == removals.size(), "the diff does not list the removed files");
+    }
+
+    private static void checkCommit(Commit actual, Commit expected) {
+        check(actual.getCommitId().equals(expected.getCommitId()), "the commit id was not kept");
+        check(actual.getMessage().equals(expected.getMessage()), "the message was not kept");
+        check(actual.getTimestamp().equals(expected.getTimestamp()), "the timestamp was not kept");
+        check(Objects.equals(actual.getParent(), expected.getParent())
+                && Objects.equals(actual.getSecondParent(), expected.getSecondParent()),
+                "the parents were not kept");
+    }
+
+    private static void checkMeta(CommitMeta meta, Commit expected) {
+        check(meta.getCommitId().equals(expected.getCommitId()) && meta.getMessage().equals(expected.getMessage())
+                && meta.getTimestamp() == expected.getTimestamp().getTime()
+                && Objects.equals(meta.getParent(), expected.getParent())
+                && Objects.equals(meta.getSecondParent(), expected.getSecondParent()),
+                "the header of " + expected.getMessage() + " was not decoded");
+    }
+
+    /** Return CONTENT with TEXT inserted at POSITION. */
+    private static byte[] edit(byte[] content, int position, String text) {
+        byte[] inserted = text.getBytes(StandardCharsets.UTF_8);
+        byte[] edited = Arrays.copyOf(content, content.length + inserted.length);
+        System.arraycopy(inserted, 0, edited, position, inserted.length);
+        System.arraycopy(content, position, edited, position + inserted.length, content.length - position);
+        return edited;
+    }
+
+    /** Return the depth of blob ID in its delta chain, 0 if it is stored whole. */
+    private static int deltaDepth(ObjectStore store, String id) {
+        ObjectStore.StoredObject blob = store.open(id);
+        try (InputStream in = blob.getContent()) {
+            return blob.getType() == ObjectStore.TYPE_DELTA ? Delta.depthOf(in.readNBytes(Delta.HEADER_LENGTH)) : 0;
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+    }
+
+    /** Check that BLOBS gives back each of VERSIONS, whole and streamed, under its id in IDS. */
+    private static void checkVersions(BlobService blobs, List<String> ids, List<byte[]> versions) {
+        for (int i = versions.size() - 1; i >= 0; i -= 1) {
+            byte[] content = versions.get(i);
+            check(ids.get(i).equals(Utils.sha1((Object) content)), "version " + i + " was not saved under its sha1");
+            check(Arrays.equals(blobs.readBlob(ids.get(i)), content), "version " + i + " was not rebuilt");
+            check(blobs.getSize(ids.get(i)) == content.length, "version " + i + " has size " + blobs.getSize(ids.get(i)));
+            try (InputStream in = blobs.openBlob(ids.get(i))) {
+                check(Arrays.equals(in.readAllBytes(), content), "version " + i + " was not streamed back");
+            } catch (IOException excp) {
+                throw new UncheckedIOException(excp);
+            }
+        }
+    }
+
+    /** Check that STORE holds exactly the objects of CONTENTS, each of TYPE. */
+    private static void checkObjects(ObjectStore store, byte type, Map<String, byte[]> contents) {
+        check(new TreeSet<>(store.ids()).equals(contents.keySet()), "the store lists " + store.ids().size()
+                + " objects, not " + contents.size());
+        contents.forEach((id, content) -> checkObject(store, id, type, content));
+    }
+
+    /** Check the type, the length in the header and the content of the object ID. */
+    private static void checkObject(ObjectStore store, String id, byte type, byte[] content) {
+        check(store.contains(id), id + " is not in the store");
+        ObjectStore.StoredObject object = store.open(id);
+        try (InputStream in = object.getContent()) {
+            check(object.getType() == type, id + " has type " + object.getType());
+            check(object.getLength() == content.length, id + " has length " + object.getLength());
+            check(Arrays.equals(in.readAllBytes(), content), id + " was not read back as written");
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+        check(store.size(id) == content.length, id + " has size " + store.size(id));
+        check(Arrays.equals(store.read(id), content), id + " was not read back whole");
+    }
+
+    private static ObjectStore store(File dir, String name, byte type, PackStore packs) {
+        File objects = new File(dir, name);
+        objects.mkdirs();
+        return new ObjectStore(objects, type, packs, new File(dir, name + ".bloom"));
+    }
+
+    private static List<String> packFiles(File dir) {
+        String[] names = new File(dir, "packs").list();
+        return names == null ? List.of() : List.of(names);
+    }
+
+    private static File looseFile(File dir, String id) {
+        return new File(dir, "blobs/" + id.substring(0, 2) + "/" + id.substring(2));
+    }
+
+    /** Lines of words, compressible as source text is; the same for the same seed. */
+    private static byte[] text(int length, long seed) {
+        Random random = new Random(seed);
+        String[] words = {"commit", "tree", "blob", "branch", "merge", "checkout", "status", "index"};
+        StringBuilder out = new StringBuilder(length + 16);
+        while (out.length() < length) {
+            out.append(words[random.nextInt(words.length)]).append(random.nextInt(10) == 0 ? '\n' : ' ');
+        }
+        out.setLength(length);
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private interface Case {
+        void run(File dir) throws Exception;
+    }
+
+    private static void run(String name, Case test) throws Exception {
+        File dir = Files.createTempDirectory("gitlet-storage").toFile();
+        try {
+            test.run(dir);
+            System.out.println("PASS " + name);
+        } catch (AssertionError excp) {
+            failures += 1;
+            System.out.println("FAIL " + name + ": " + excp.getMessage());
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static byte[] readFile(File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+    }
+
+    private static void writeFile(File file, byte[] content) {
+        file.getParentFile().mkdirs();
+        try {
+            Files.write(file.toPath(), content);
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+    }
+}